@@ -3,9 +3,44 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Amazon.java
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+# check that the embedded engine answers every statement the menus send
+javac -cp $DIR/../classes -d $DIR/../classes $DIR/../test/*.java || exit 1
+java -cp $DIR/../classes EmbeddedEngineTest $DIR/../../data || exit 1
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Amazon $USER"_project_phase_3_DB" $PGPORT $USER
+#Set PGREPLICAS to a space separated list of replica ports (or host:port) to spread reads over them
+#Add --shard=<port | host:port[/dbname]>[@<first storeID>] arguments to split stores across databases
+#Add --listen[=<cache ttl seconds>] to cache stores, catalogs and users, kept fresh by LISTEN/NOTIFY (needs sql/src/create_triggers.sql)
+#Add --result-cache[=<MB>[,<ttl seconds>]] to reuse results of repeated reads, evicted by table on writes (default 16 MB, 30 s); other clients' writes show up only after the ttl, Product and Store ones sooner with --listen
+#Add --record=<file> to record the typed session, or --replay=<file>[@<speed>] [--results=<file>] to replay one
+#  (@10 for 10x, @0 for as fast as the database allows; per step timings go to <file>.results.tsv)
+#  Passwords are masked in the recording and asked for again on replay. --record-passwords keeps them
+#  in PLAIN TEXT so a replay runs unattended: only use it with throwaway test accounts
+#Add --embedded=$DIR/../../data to run on an in-process copy of data/*.csv without PostgreSQL
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Amazon $USER"_project_phase_3_DB" $PGPORT $USER $PGREPLICAS
+
+
+#compare platform and virtual threads over 100, 1k and 10k concurrent sessions (optional pool size last)
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar RequestExecutor $USER"_project_phase_3_DB" $PGPORT $USER 10
+
+#count round trips per order for currval, RETURNING and reserved key blocks (each order is rolled back)
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar KeyBlockAllocator $USER"_project_phase_3_DB" $PGPORT $USER 1000 10 10
+
+#per request latency of the embedded engine (a lower bound) next to the JDBC path
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar EmbeddedEngine $DIR/../../data $USER"_project_phase_3_DB" $PGPORT $USER 1000
+
+#time sales trend queries over a synthetic rollup of 100M orders (no database needed)
+#java -Xmx2g -cp $DIR/../classes SalesRollup 100000000
+
+#heap held by the productName column of a 10M row Orders scan: padded Strings, shared dictionary copies, int codes
+#  (each layout is measured in a JVM of its own; the dictionary's distinct names are reported separately)
+#java -Xmx3g -cp $DIR/../classes ProductNameDictionary 10000000
+
+#summarize an exported report (menu 13), or re-aggregate it offline: rows (and a column's sum) per value of a column
+#java -cp $DIR/../classes ReportReader orders_store1.amzr productName
 
+#hit rate of the result cache's W-TinyLFU eviction on a synthetic Zipf trace with scans
+#java -cp $DIR/../classes ResultCache 1000000
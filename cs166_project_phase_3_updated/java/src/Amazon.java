@@ -19,11 +19,10 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
 import java.lang.Math;
 
 /**
@@ -43,10 +42,60 @@ public class Amazon {
    // reference to physical database connection.
    private Connection _connection = null;
 
-   // handling the keyboard inputs through a BufferedReader
+   // read-only replicas of the primary; reads are spread over them round-robin
+   private List<Connection> _replicas = new ArrayList<Connection>();
+   private List<String> _replicaTargets = new ArrayList<String>();
+   private int _nextReplica = 0;
+
+   // after a write, reads stay on the primary until this time (read-your-writes).
+   // Best effort: a fixed window, not a check of the replicas' WAL position, so
+   // a replica lagging more than READ_YOUR_WRITES_MS can still serve old rows.
+   private long _primaryPinnedUntil = 0;
+   public static final long READ_YOUR_WRITES_MS = 5000;
+
+   // store-sharded deployment; null when every table lives in this database
+   private ShardRouter _shards = null;
+
+   // connection settings, kept to open the change listener connection
+   private String _target, _dbname, _user, _passwd;
+
+   // long lived cache of stores, catalogs and users, kept fresh by change
+   // notifications; null unless the change listener runs
+   private ClientCache _cache = null;
+   private ChangeListener _listener = null;
+   public static final long DEFAULT_CACHE_TTL_MS = 10 * 60 * 1000;
+
+   // results of repeated reads keyed by normalized SQL; null unless enabled
+   private ResultCache _resultCache = null;
+   public static final long DEFAULT_RESULT_CACHE_BYTES = 16L << 20;
+   public static final long DEFAULT_RESULT_CACHE_TTL_MS = 30 * 1000;
+
+   // when set, query results are counted but not printed (simulated sessions)
+   private boolean _quiet = false;
+
+   // whether the driver hands out inserted keys through getGeneratedKeys
+   private boolean _generatedKeys = false;
+
+   // statements sent to the server through this instance
+   private long _roundTrips = 0;
+
+   // rows fetched per round trip when streaming a result to a report
+   public static final int EXPORT_FETCH_ROWS = 10000;
+
+   // in-process copy of the database used instead of a connection, or null
+   private EmbeddedEngine _embedded = null;
+
+   // hourly and daily sales of the stores in this database; null until a
+   // manager first asks for a sales trend
+   private SalesRollup _rollup = null;
+   public static final int ROLLUP_BACKFILL_CONNECTIONS = 4;
+
+   // handling the keyboard inputs, or a recorded session, one line at a time
    // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   static SessionInput in = SessionInput.interactive();
+
+   // runs the database work of every menu operation as a request
+   static RequestExecutor requests = null;
 
    /**
     * Creates a new instance of Amazon store
@@ -58,15 +107,34 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Amazon(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd, new ArrayList<String>());
+   }//end Amazon
+
+   /**
+    * Creates a new instance of Amazon store with read replicas
+    *
+    * @param dbname the name of the database
+    * @param dbport the primary target, given as <port>, <host>:<port> or <host>:<port>/<dbname>
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param replicas replica targets given in the same form as dbport
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Amazon(String dbname, String dbport, String user, String passwd, List<String> replicas) throws SQLException {
 
       System.out.print("Connecting to database...");
+      this._target = dbport;
+      this._dbname = dbname;
+      this._user = user;
+      this._passwd = passwd;
       try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
-
          // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         this._connection = connect(dbport, dbname, user, passwd);
+         this._generatedKeys = this._connection.getMetaData().supportsGetGeneratedKeys();
+         for (String target : replicas){
+            this._replicas.add(connect(target, dbname, user, passwd));
+            this._replicaTargets.add(target);
+         }
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -75,6 +143,353 @@ public class Amazon {
       }//end catch
    }//end Amazon
 
+   /**
+    * Creates a new instance of Amazon store on the embedded engine, without
+    * a database server
+    *
+    * @param engine the in-process tables to run statements on
+    */
+   public Amazon(EmbeddedEngine engine) {
+      this._embedded = engine;
+   }//end Amazon
+
+   // An instance reading and writing through one connection it was given.
+   private Amazon(Connection connection) {
+      this._connection = connection;
+   }//end Amazon
+
+   // Opens a connection to <host>:<port>, or localhost:<port> when only a port is given.
+   // A trailing /<dbname> on the target overrides the default database name.
+   private static Connection connect(String target, String dbname, String user, String passwd) throws SQLException {
+      String url = url(target, dbname);
+      System.out.println ("Connection URL: " + url + "\n");
+      return DriverManager.getConnection(url, user, passwd);
+   }
+
+   // The connection URL of a target, as connect reads it.
+   private static String url(String target, String dbname) {
+      if (target.indexOf('/') >= 0){
+         dbname = target.substring(target.indexOf('/') + 1);
+         target = target.substring(0, target.indexOf('/'));
+      }
+      if (target.indexOf(':') < 0)
+         target = "localhost:" + target;
+      // constructs the connection URL
+      return "jdbc:postgresql://" + target + "/" + dbname;
+   }
+
+   // Opens one more connection of this session's database for a bulk read,
+   // to the given replica target or to the primary when it is null. Unlike
+   // the constructor it prints nothing and throws instead of exiting, as it
+   // runs in the middle of a menu operation.
+   private Amazon openReader(String target) throws SQLException {
+      String url = url(target == null ? this._target : target, this._dbname);
+      return new Amazon(DriverManager.getConnection(url, this._user, this._passwd));
+   }
+
+   public void setQuiet(boolean quiet) {
+      this._quiet = quiet;
+   }
+
+   /**
+    * @return the number of statements sent to the server through this instance
+    */
+   public long roundTrips() {
+      return this._roundTrips;
+   }
+
+   /**
+    * Picks the connection a read-only statement is sent to. Reads go to the
+    * replicas in round-robin, except right after this session wrote something,
+    * when they stay on the primary for READ_YOUR_WRITES_MS so the session sees
+    * its own changes, provided no replica lags by more than that.
+    */
+   private Connection readConnection() {
+      if (this._replicas.isEmpty() || System.currentTimeMillis() < this._primaryPinnedUntil)
+         return this._connection;
+      Connection conn = this._replicas.get(this._nextReplica);
+      this._nextReplica = (this._nextReplica + 1) % this._replicas.size();
+      return conn;
+   }
+
+   // The replica target readConnection would pick next, or null for the primary.
+   private String readTarget() {
+      if (this._replicaTargets.isEmpty() || System.currentTimeMillis() < this._primaryPinnedUntil)
+         return null;
+      String target = this._replicaTargets.get(this._nextReplica);
+      this._nextReplica = (this._nextReplica + 1) % this._replicaTargets.size();
+      return target;
+   }
+
+   /**
+    * Splits the store-keyed tables across the given shards. This instance
+    * stays the home database for Users and Warehouse.
+    *
+    * @param shards the other shard databases
+    * @param firstStoreIDs first storeID owned by each shard, home included,
+    *                      or null to place stores by hash
+    */
+   public void setShards(List<Amazon> shards, int[] firstStoreIDs) {
+      List<Amazon> all = new ArrayList<Amazon>();
+      all.add(this);
+      all.addAll(shards);
+      this._shards = new ShardRouter(all, firstStoreIDs);
+   }
+
+   /**
+    * @param storeID the store a statement reads or writes
+    * @return the database that holds the rows of that store
+    */
+   public Amazon forStore(int storeID) {
+      if (this._shards == null)
+         return this;
+      return this._shards.shardFor(storeID);
+   }
+
+   /**
+    * Runs a query over the store-keyed tables of every shard in parallel and
+    * prints the combined rows to standard out.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResultAllStores (String query) throws SQLException {
+      if (this._shards == null)
+         return executeQueryAndPrintResult(query);
+      return printResult(this._shards.gather(query, false));
+   }
+
+   /**
+    * Same as executeQueryAndPrintResultAllStores for a query ending in
+    * ORDER BY <sortColumn> DESC LIMIT <limit>; the shard results are merged
+    * so that only the overall top rows are printed.
+    */
+   public int executeQueryAndPrintTopAllStores (String query, int sortColumn, int limit) throws SQLException {
+      if (this._shards == null)
+         return executeQueryAndPrintResult(query);
+      return printResult(this._shards.gatherTop(query, sortColumn, limit));
+   }
+
+   /**
+    * Runs a query over the store-keyed tables of every shard in parallel.
+    *
+    * @param query the input query string
+    * @return the combined query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResultAllStores (String query) throws SQLException {
+      if (this._shards == null)
+         return executeQueryAndReturnResult(query);
+      List<List<String>> result = this._shards.gather(query, false);
+      return result.subList(1, result.size());
+   }
+
+   /**
+    * Applies a write to a reference table (Users, Warehouse) on every shard,
+    * since each shard keeps its own copy for its foreign keys. A write one
+    * shard rejects is committed nowhere; one whose commit fails on a shard is
+    * undone on the shards that committed by the compensation, best effort;
+    * see ShardRouter.broadcast.
+    *
+    * @param sql the input SQL string
+    * @param compensation the statement that undoes the write, or null
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeUpdateAllShards (String sql, String compensation) throws SQLException {
+      if (this._shards == null)
+         executeUpdate(sql);
+      else
+         this._shards.broadcast(sql, compensation);
+   }
+
+   /**
+    * Inserts a row into a reference table on every shard. The home database
+    * allocates the key from its sequence and every shard gets the row with
+    * that explicit key, so the copies agree. A shard that cannot take the
+    * row keeps it from being committed anywhere; should a commit fail, the
+    * row is deleted again from the shards that committed, best effort.
+    *
+    * @param table the reference table, i.e. Users
+    * @param keyColumn the name of the serial key column
+    * @param sequence name of the DB sequence behind the key column
+    * @param columns the other columns, comma separated
+    * @param values their SQL values, comma separated
+    * @return the key of the new row
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public int executeInsertAllShards (String table, String keyColumn, String sequence, String columns, String values) throws SQLException {
+      if (this._shards == null)
+         return executeInsertAndReturnKey(String.format("INSERT INTO %s (%s) VALUES (%s)", table, columns, values), keyColumn);
+      int key = getNextSeqVal(sequence);
+      executeUpdateAllShards(String.format("INSERT INTO %s (%s, %s) VALUES (%d, %s)", table, keyColumn, columns, key, values),
+         String.format("DELETE FROM %s WHERE %s = %d", table, keyColumn, key));
+      return key;
+   }
+
+   /**
+    * Starts a transaction on the primary: the writes of this instance are
+    * held until commit or rollback. Does nothing on the embedded engine.
+    *
+    * @throws java.sql.SQLException when the transaction could not be started
+    */
+   public void beginTransaction () throws SQLException {
+      if (this._embedded == null)
+         this._connection.setAutoCommit(false);
+   }
+
+   /**
+    * Commits the transaction started with beginTransaction.
+    *
+    * @throws java.sql.SQLException when the commit failed; the transaction
+    *         is still open then, to be rolled back
+    */
+   public void commit () throws SQLException {
+      if (this._embedded == null){
+         this._connection.commit();
+         this._connection.setAutoCommit(true);
+      }
+   }
+
+   /**
+    * Rolls back the transaction started with beginTransaction.
+    *
+    * @throws java.sql.SQLException when the rollback failed
+    */
+   public void rollback () throws SQLException {
+      if (this._embedded == null){
+         try{
+            this._connection.rollback();
+         }finally{
+            this._connection.setAutoCommit(true);
+         }
+      }
+   }
+
+   /**
+    * Turns on the client cache and starts a change listener on this database
+    * and on every shard. Needs sql/src/create_triggers.sql to be loaded.
+    *
+    * @param ttlMs how long an entry is kept when no change is announced
+    * @throws java.sql.SQLException when a listener connection failed
+    */
+   public void startChangeListener(long ttlMs) throws SQLException {
+      ClientCache cache = new ClientCache(ttlMs);
+      if (this._shards == null){
+         attachChangeListener(cache);
+      }else{
+         for (Amazon shard : this._shards.shards())
+            shard.attachChangeListener(cache);
+      }
+   }
+
+   /**
+    * Turns on the result cache under executeQueryAndReturnResult, for this
+    * database and every shard. Call after startChangeListener, if any, so
+    * change notifications evict dependent results too.
+    *
+    * @param maxBytes the estimated heap the cached results may take, split
+    *                 evenly over the shards
+    * @param ttlMs how long a result is kept when no write to its tables is seen
+    */
+   public void enableResultCache(long maxBytes, long ttlMs) {
+      List<Amazon> databases = this._shards == null ? Arrays.asList(this) : this._shards.shards();
+      for (Amazon database : databases){
+         database._resultCache = new ResultCache(maxBytes / databases.size(), ttlMs);
+         if (database._cache != null)
+            database._cache.addResultCache(database._resultCache);
+      }
+   }
+
+   /**
+    * @return the hit rate and size of the result cache of each database, or
+    *         null when it is off
+    */
+   public String resultCacheStats() {
+      if (this._shards == null)
+         return this._resultCache == null ? null : this._resultCache.stats();
+      String stats = "";
+      for (Amazon shard : this._shards.shards()){
+         if (shard._resultCache != null)
+            stats += (stats.isEmpty() ? "" : "; ") + shard._resultCache.stats();
+      }
+      return stats.isEmpty() ? null : stats;
+   }
+
+   // Shares the cache and listens for the changes made in this database.
+   private void attachChangeListener(ClientCache cache) throws SQLException {
+      Statement stmt = this._connection.createStatement ();
+      ResultSet rs = stmt.executeQuery ("SELECT pg_backend_pid()");
+      rs.next();
+      int writerPid = rs.getInt(1);
+      stmt.close ();
+
+      this._cache = cache;
+      this._listener = new ChangeListener(connect(this._target, this._dbname, this._user, this._passwd), writerPid, cache);
+      this._listener.start();
+   }
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) whose
+    * result is kept in the client cache under the given key. The key is the
+    * change notification channel of the rows the query reads. Misses are
+    * read from the primary so a lagging replica cannot refill the cache with
+    * old rows right after an invalidation.
+    *
+    * @param key the cache key, i.e. product_<storeID>, store or users_<userID>
+    * @param query the input query string
+    * @return the column names followed by the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnCachedResult (String key, String query) throws SQLException {
+      if (this._cache == null)
+         return executeQueryAndReturnResultWithHeader(query);
+      List<List<String>> result = this._cache.get(key);
+      if (result == null){
+         long generation = this._cache.subscribe(key);
+         result = executeQueryAndReturnResultWithHeader(query, true);
+         this._cache.put(key, result, generation);
+      }
+      return result;
+   }
+
+   /**
+    * Same as executeQueryAndReturnCachedResult for a query over the
+    * store-keyed tables of every shard.
+    */
+   public List<List<String>> executeQueryAndReturnCachedResultAllStores (String key, String query) throws SQLException {
+      if (this._shards == null)
+         return executeQueryAndReturnCachedResult(key, query);
+      if (this._cache == null)
+         return this._shards.gather(query, false);
+      List<List<String>> result = this._cache.get(key);
+      if (result == null){
+         long generation = this._cache.subscribe(key);
+         result = this._shards.gather(query, true);
+         this._cache.put(key, result, generation);
+      }
+      return result;
+   }
+
+   // Drops the cache entries a write through this client makes stale, without
+   // waiting for its notification to come back.
+   private void invalidateCachedTable(String sql) {
+      String table = sql.trim().toLowerCase().replaceAll("^(insert\\s+into|update|delete\\s+from)\\s+(\\w+).*$", "$2");
+      if (table.equals("product"))
+         this._cache.invalidatePrefix("product_");
+      else if (table.equals("store"))
+         this._cache.invalidatePrefix("store");
+      else if (table.equals("users"))
+         this._cache.invalidatePrefix("users_");
+   }
+
+   // Drops the cached results that read the table a write changes.
+   private void invalidateCachedResults(String sql) {
+      String table = ResultCache.writtenTable(sql);
+      if (table != null)
+         this._resultCache.invalidateTable(table);
+   }
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public static double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
@@ -89,14 +504,31 @@ public class Amazon {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
+      if (this._embedded != null){
+         this._embedded.update(sql);
+         ++this._roundTrips;
+         if (this._resultCache != null)
+            invalidateCachedResults(sql);
+         return;
+      }
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
 
       // issues the update instruction
+      if (this._listener != null)
+         this._listener.writeSent();
       stmt.executeUpdate (sql);
+      ++this._roundTrips;
 
       // close the instruction
       stmt.close ();
+
+      // keep following reads on the primary until replicas catch up
+      this._primaryPinnedUntil = System.currentTimeMillis() + READ_YOUR_WRITES_MS;
+      if (this._cache != null)
+         invalidateCachedTable(sql);
+      if (this._resultCache != null)
+         invalidateCachedResults(sql);
    }//end executeUpdate
 
    /**
@@ -109,11 +541,14 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      if (this._embedded != null || this._resultCache != null)
+         return printResult(executeQueryAndReturnResultWithHeader(query));
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = readConnection().createStatement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
+      ++this._roundTrips;
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -125,7 +560,12 @@ public class Amazon {
 
       // iterates through the result set and output them to standard out.
       boolean outputHeader = true;
+      boolean[] names = productNameColumns(rsmd);
       while (rs.next()){
+         if(this._quiet){
+            ++rowCount;
+            continue;
+         }
 		 if(outputHeader){
 			for(int i = 1; i <= numCol; i++){
 			System.out.print(rsmd.getColumnName(i) + "\t");
@@ -134,7 +574,7 @@ public class Amazon {
 			outputHeader = false;
 		 }
          for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
+            System.out.print ((names[i] ? ProductNameDictionary.SHARED.canonical(rs.getString (i)) : rs.getString (i)) + "\t");
          System.out.println ();
          ++rowCount;
       }//end while
@@ -152,11 +592,16 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      if (this._embedded != null || this._resultCache != null){
+         List<List<String>> result = executeQueryAndReturnResultWithHeader(query);
+         return result.subList(1, result.size());
+      }
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = readConnection().createStatement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
+      ++this._roundTrips;
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -168,17 +613,215 @@ public class Amazon {
 
       // iterates through the result set and saves the data returned by the query.
       boolean outputHeader = false;
+      boolean[] names = productNameColumns(rsmd);
       List<List<String>> result  = new ArrayList<List<String>>();
       while (rs.next()){
         List<String> record = new ArrayList<String>();
 		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
+			record.add(names[i] ? ProductNameDictionary.SHARED.canonical(rs.getString (i)) : rs.getString (i));
         result.add(record);
       }//end while
       stmt.close ();
       return result;
    }//end executeQueryAndReturnResult
 
+   /**
+    * Same as executeQueryAndReturnResult, but the first record holds the
+    * column names so the result can be printed later.
+    *
+    * @param query the input query string
+    * @return the column names followed by the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResultWithHeader (String query) throws SQLException {
+      return executeQueryAndReturnResultWithHeader(query, false);
+   }
+
+   /**
+    * Same as executeQueryAndReturnResultWithHeader, optionally bypassing the
+    * replicas and the result cache.
+    *
+    * @param query the input query string
+    * @param primary true to read from the primary even if replicas are set,
+    *                which also bypasses the result cache
+    * @return the column names followed by the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResultWithHeader (String query, boolean primary) throws SQLException {
+      return executeQueryAndReturnResultWithHeader(query, primary, !primary);
+   }
+
+   /**
+    * Same as executeQueryAndReturnResultWithHeader, choosing separately
+    * whether to bypass the replicas and whether to bypass the result cache,
+    * e.g. for a large scan that may run on a replica but is read only once.
+    *
+    * @param query the input query string
+    * @param primary true to read from the primary even if replicas are set
+    * @param cached false to neither look up nor keep the result in the
+    *               result cache
+    * @return the column names followed by the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResultWithHeader (String query, boolean primary, boolean cached) throws SQLException {
+      String key = this._resultCache == null || !cached ? null : ResultCache.normalize(query);
+      if (key != null){
+         List<List<String>> result = this._resultCache.get(key);
+         if (result == null){
+            long generation = this._resultCache.begin(key);
+            result = readResultWithHeader(query, primary);
+            this._resultCache.put(key, result, generation);
+         }
+         return result;
+      }
+      return readResultWithHeader(query, primary);
+   }//end executeQueryAndReturnResultWithHeader
+
+   private List<List<String>> readResultWithHeader (String query, boolean primary) throws SQLException {
+      if (this._embedded != null){
+         ++this._roundTrips;
+         return this._embedded.query(query);
+      }
+      Statement stmt = (primary ? this._connection : readConnection()).createStatement ();
+      ResultSet rs = stmt.executeQuery (query);
+      ++this._roundTrips;
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+
+      List<List<String>> result  = new ArrayList<List<String>>();
+      List<String> header = new ArrayList<String>();
+      for (int i=1; i<=numCol; ++i)
+         header.add(rsmd.getColumnName(i));
+      result.add(header);
+      boolean[] names = productNameColumns(rsmd);
+      while (rs.next()){
+         List<String> record = new ArrayList<String>();
+         for (int i=1; i<=numCol; ++i)
+            record.add(names[i] ? ProductNameDictionary.SHARED.canonical(rs.getString (i)) : rs.getString (i));
+         result.add(record);
+      }//end while
+      stmt.close ();
+      return result;
+   }//end readResultWithHeader
+
+   /**
+    * Method to execute a query and stream its result to a report file. The
+    * rows are read through a server side cursor, EXPORT_FETCH_ROWS per round
+    * trip, so memory stays constant however large the result is. The cursor
+    * runs on a connection opened for the export and closed after it.
+    *
+    * @param query the input query string
+    * @param writer the report to write the column names and rows to; it is
+    *               left open
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to write the report
+    */
+   public long executeQueryAndStreamResult (String query, ReportWriter writer) throws SQLException, IOException {
+      if (this._embedded != null){
+         ++this._roundTrips;
+         List<List<String>> result = this._embedded.query(query);
+         writer.columns(result.get(0));
+         for (List<String> record : result.subList(1, result.size()))
+            writer.row(record);
+         return result.size() - 1;
+      }
+      // the driver materializes whole results, so fetch through a cursor;
+      // cursors only live inside a transaction, which is held on a
+      // connection of its own so no other request runs in it meanwhile
+      Amazon reader = openReader(readTarget());
+      Connection conn = reader._connection;
+      Statement stmt;
+      try{
+         conn.setAutoCommit(false);
+         stmt = conn.createStatement ();
+      }catch (SQLException e){
+         reader.cleanup();
+         throw e;
+      }
+      long rowCount = 0;
+      try{
+         stmt.setFetchSize(EXPORT_FETCH_ROWS);
+         stmt.execute ("DECLARE report_export NO SCROLL CURSOR FOR " + query);
+         ++this._roundTrips;
+         boolean header = true;
+         int fetched = EXPORT_FETCH_ROWS;
+         while (fetched == EXPORT_FETCH_ROWS){
+            ResultSet rs = stmt.executeQuery ("FETCH FORWARD " + EXPORT_FETCH_ROWS + " FROM report_export");
+            ++this._roundTrips;
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+            boolean[] names = productNameColumns(rsmd);
+            if (header){
+               List<String> columns = new ArrayList<String>();
+               for (int i=1; i<=numCol; ++i)
+                  columns.add(rsmd.getColumnName(i));
+               writer.columns(columns);
+               header = false;
+            }
+            List<String> record = new ArrayList<String>(Arrays.asList(new String[numCol]));
+            for (fetched = 0; rs.next(); ++fetched){
+               for (int i=1; i<=numCol; ++i)
+                  record.set(i - 1, names[i] ? ProductNameDictionary.SHARED.canonical(rs.getString (i)) : rs.getString (i));
+               writer.row(record);
+            }//end for
+            rs.close ();
+            rowCount += fetched;
+         }//end while
+         stmt.execute ("CLOSE report_export");
+         conn.commit ();
+      }catch (SQLException | IOException e){
+         try{
+            conn.rollback ();
+         }catch (SQLException rollback){
+            e.addSuppressed(rollback);
+         }
+         throw e;
+      }finally{
+         try{
+            stmt.close ();
+         }finally{
+            reader.cleanup();
+         }//end try
+      }//end try
+      return rowCount;
+   }//end executeQueryAndStreamResult
+
+   // Flags the productName columns of a result, by 1-based index. Their
+   // char(30) values are materialized as the shared dictionary's trimmed
+   // copy, so every row holding the same name points to one String.
+   private static boolean[] productNameColumns (ResultSetMetaData rsmd) throws SQLException {
+      boolean[] names = new boolean[rsmd.getColumnCount () + 1];
+      for (int i=1; i<names.length; ++i)
+         names[i] = rsmd.getColumnName(i).equalsIgnoreCase("productName");
+      return names;
+   }
+
+   /**
+    * Prints a result whose first record holds the column names, in the same
+    * layout as executeQueryAndPrintResult.
+    *
+    * @param result the column names followed by the rows
+    * @return the number of rows printed
+    */
+   public int printResult (List<List<String>> result) {
+      if (this._quiet)
+         return result.size() - 1;
+      int rowCount = 0;
+      for (int r = 1; r < result.size(); r++){
+         if (r == 1){
+            for (String column : result.get(0))
+               System.out.print(column + "\t");
+            System.out.println();
+         }
+         for (String value : result.get(r))
+            System.out.print (value + "\t");
+         System.out.println ();
+         ++rowCount;
+      }//end for
+      return rowCount;
+   }//end printResult
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -188,11 +831,14 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
+       if (this._embedded != null)
+          return executeQueryAndReturnResultWithHeader(query, true).size() - 1;
        // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       Statement stmt = readConnection().createStatement ();
 
        // issues the query instruction
        ResultSet rs = stmt.executeQuery (query);
+       ++this._roundTrips;
 
        int rowCount = 0;
 
@@ -207,21 +853,143 @@ public class Amazon {
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys. currval is local to the
+    * session that did the insert, so this always runs on the primary.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
+	if (this._embedded != null)
+		return Integer.parseInt(executeQueryAndReturnResult(String.format("Select currval('%s')", sequence)).get(0).get(0));
 	Statement stmt = this._connection.createStatement ();
 
 	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+	++this._roundTrips;
+	int value = -1;
 	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+		value = rs.getInt(1);
+	stmt.close ();
+	return value;
+   }
+
+   /**
+    * Method to take the next value of a sequence on the primary, e.g. to
+    * name the key of a row before inserting it.
+    *
+    * @param sequence name of the DB sequence
+    * @return the next value of the sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getNextSeqVal(String sequence) throws SQLException {
+      String query = String.format("SELECT nextval('%s')", sequence);
+      return Integer.parseInt(executeQueryAndReturnResultWithHeader(query, true).get(1).get(0));
    }
 
+   /**
+    * Method to execute an INSERT statement and return the key the DBMS
+    * generated for the new row, in the same round trip. The key comes from
+    * getGeneratedKeys when the driver supports it and from a RETURNING
+    * clause otherwise.
+    *
+    * @param sql the INSERT statement, without a RETURNING clause
+    * @param keyColumn the name of the serial key column
+    * @return the generated key, or -1 if no row was inserted
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public int executeInsertAndReturnKey (String sql, String keyColumn) throws SQLException {
+      if (this._embedded != null){
+         ++this._roundTrips;
+         int key = this._embedded.update(sql);
+         if (this._resultCache != null)
+            invalidateCachedResults(sql);
+         return key;
+      }
+      Statement stmt = this._connection.createStatement ();
+      if (this._listener != null)
+         this._listener.writeSent();
+
+      ResultSet rs;
+      if (this._generatedKeys){
+         stmt.executeUpdate (sql, new String[] { keyColumn });
+         rs = stmt.getGeneratedKeys ();
+      }else{
+         rs = stmt.executeQuery (sql + " RETURNING " + keyColumn);
+      }
+      ++this._roundTrips;
+      int key = -1;
+      if (rs.next())
+         key = rs.getInt(1);
+      stmt.close ();
+
+      this._primaryPinnedUntil = System.currentTimeMillis() + READ_YOUR_WRITES_MS;
+      if (this._cache != null)
+         invalidateCachedTable(sql);
+      if (this._resultCache != null)
+         invalidateCachedResults(sql);
+      return key;
+   }//end executeInsertAndReturnKey
+
+   /**
+    * Returns the sales rollup of the stores in this database, up to date with
+    * the orders placed so far. The first call backfills it from Orders over
+    * ROLLUP_BACKFILL_CONNECTIONS connections.
+    *
+    * @return the rollup
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   public synchronized SalesRollup salesRollup() throws SQLException {
+      if (this._rollup == null){
+         SalesRollup rollup = new SalesRollup(ProductNameDictionary.SHARED);
+         List<Amazon> connections = new ArrayList<Amazon>();
+         connections.add(this);
+         if (this._embedded == null){
+            // each extra connection reads from one replica, if there are any;
+            // one that cannot be opened falls back to the primary, and the
+            // backfill makes do with fewer connections if that fails too
+            for (int i = 1; i < ROLLUP_BACKFILL_CONNECTIONS; i++){
+               String replica = this._replicaTargets.isEmpty() ? null : this._replicaTargets.get(i % this._replicaTargets.size());
+               try{
+                  connections.add(openReader(replica));
+               }catch (SQLException e){
+                  try{
+                     if (replica != null)
+                        connections.add(openReader(null));
+                  }catch (SQLException primary){
+                     // ignored: read on the connections that did open
+                  }//end try
+               }//end try
+            }//end for
+         }//end if
+         try{
+            rollup.backfill(connections);
+         }finally{
+            for (Amazon esql : connections.subList(1, connections.size())){
+               esql.cleanup();
+            }//end for
+         }//end try
+         this._rollup = rollup;
+      }//end if
+      this._rollup.catchUp(this);
+      return this._rollup;
+   }//end salesRollup
+
+   /**
+    * Rolls up the orders placed since the last call, if a manager has asked
+    * for a sales trend before; does nothing otherwise.
+    *
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   public void rollUpNewOrders() throws SQLException {
+      SalesRollup rollup;
+      synchronized (this){
+         rollup = this._rollup;
+      }
+      if (rollup != null)
+         rollup.catchUp(this);
+   }//end rollUpNewOrders
+
    /**
     * Method to close the physical connection if it is open.
     */
@@ -230,6 +998,19 @@ public class Amazon {
          if (this._connection != null){
             this._connection.close ();
          }//end if
+         for (Connection replica : this._replicas){
+            replica.close ();
+         }//end for
+         if (this._resultCache != null){
+            System.out.println ("Result cache " + this._resultCache.stats ());
+         }//end if
+         if (this._listener != null){
+            System.out.println ("Cache " + this._listener.stats ());
+            this._listener.shutdown ();
+         }//end if
+         if (this._shards != null){
+            this._shards.cleanup ();
+         }//end if
       }catch (SQLException e){
          // ignored.
       }//end try
@@ -239,29 +1020,94 @@ public class Amazon {
     * The main execution method
     *
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    *             followed by any number of read replica targets
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length < 3) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Amazon.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [<replica port | host:port> ...]" +
+            " [--shard=<port | host:port[/dbname]>[@<first storeID>] ...]" +
+            " [--listen[=<cache ttl seconds>]] [--result-cache[=<MB>[,<ttl seconds>]]]" +
+            " [--embedded=<data dir>] [--record=<file> [--record-passwords] | --replay=<file>[@<speed, 0 for max>] [--results=<file>]]" +
+            "\n(--record-passwords writes passwords to the recording in plain text; without it they are masked and asked for on replay)");
          return;
       }//end if
 
       Greeting();
       Amazon esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
          // instantiate the Amazon object and creates a physical
          // connection.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new Amazon (dbname, dbport, user, "");
+         List<String> replicas = new ArrayList<String>();
+         List<String> shardTargets = new ArrayList<String>();
+         long cacheTtlMs = -1;
+         long resultCacheBytes = -1, resultCacheTtlMs = DEFAULT_RESULT_CACHE_TTL_MS;
+         String dataDir = null;
+         String recordFile = null, replayFile = null, resultsFile = null;
+         boolean recordPasswords = false;
+         double replaySpeed = 1;
+         for (int i = 3; i < args.length; i++){
+            if (args[i].startsWith("--shard="))
+               shardTargets.add(args[i].substring("--shard=".length()));
+            else if (args[i].equals("--listen"))
+               cacheTtlMs = DEFAULT_CACHE_TTL_MS;
+            else if (args[i].startsWith("--listen="))
+               cacheTtlMs = Long.parseLong(args[i].substring("--listen=".length())) * 1000;
+            else if (args[i].equals("--result-cache"))
+               resultCacheBytes = DEFAULT_RESULT_CACHE_BYTES;
+            else if (args[i].startsWith("--result-cache=")){
+               String[] settings = args[i].substring("--result-cache=".length()).split(",");
+               resultCacheBytes = Long.parseLong(settings[0]) << 20;
+               if (settings.length > 1)
+                  resultCacheTtlMs = Long.parseLong(settings[1]) * 1000;
+            }
+            else if (args[i].startsWith("--embedded="))
+               dataDir = args[i].substring("--embedded=".length());
+            else if (args[i].startsWith("--record="))
+               recordFile = args[i].substring("--record=".length());
+            else if (args[i].equals("--record-passwords"))
+               recordPasswords = true;
+            else if (args[i].startsWith("--replay=")){
+               replayFile = args[i].substring("--replay=".length());
+               if (replayFile.lastIndexOf('@') >= 0){
+                  replaySpeed = Double.parseDouble(replayFile.substring(replayFile.lastIndexOf('@') + 1));
+                  replayFile = replayFile.substring(0, replayFile.lastIndexOf('@'));
+               }
+            }
+            else if (args[i].startsWith("--results="))
+               resultsFile = args[i].substring("--results=".length());
+            else
+               replicas.add(args[i]);
+         }
+         if (recordFile != null)
+            in = SessionInput.recording(recordFile, recordPasswords);
+         if (replayFile != null)
+            in = SessionInput.replay(replayFile, replaySpeed, resultsFile != null ? resultsFile : replayFile + ".results.tsv");
+         if (dataDir != null){
+            // everything runs in process; replicas, shards and caches do not apply
+            System.out.print("Loading " + dataDir + " into the embedded engine...");
+            esql = new Amazon (new EmbeddedEngine (dataDir));
+            System.out.println("Done");
+         }else{
+            // use postgres JDBC driver; the embedded engine runs without it.
+            Class.forName ("org.postgresql.Driver").newInstance ();
+            esql = new Amazon (dbname, dbport, user, "", replicas);
+            if (!shardTargets.isEmpty())
+               esql.setShards(connectShards(dbname, user, "", shardTargets), parseFirstStoreIDs(shardTargets));
+            if (cacheTtlMs >= 0)
+               esql.startChangeListener(cacheTtlMs);
+         }
+         if (resultCacheBytes >= 0)
+            esql.enableResultCache(resultCacheBytes, resultCacheTtlMs);
+         requests = new RequestExecutor(Arrays.asList(esql), RequestExecutor.virtualThreadsAvailable());
 
+         in.start();
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -295,6 +1141,8 @@ public class Amazon {
                 System.out.println("9. Place Product Supply Request to Warehouse");
                 System.out.println("10. View All Orders for Store");
                 System.out.println("11. View and Edit User and Product Info");
+                System.out.println("12. View Store Sales Trends");
+                System.out.println("13. Export Store Report");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
@@ -310,6 +1158,8 @@ public class Amazon {
                    case 9: placeProductSupplyRequests(esql); break;
                    case 10:viewAllOrders(esql);break;
                    case 11: adminViewEdit(esql);break;
+                   case 12: viewSalesTrends(esql); break;
+                   case 13: exportReport(esql); break;
                    case 20: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
@@ -319,6 +1169,9 @@ public class Amazon {
       }catch(Exception e) {
          System.err.println (e.getMessage ());
       }finally{
+         in.close();
+         if (requests != null)
+            requests.shutdown();
          // make sure to cleanup the created table and close the connection.
          try{
             if(esql != null) {
@@ -332,6 +1185,31 @@ public class Amazon {
       }//end try
    }//end main
 
+   // Connects to each --shard target, ignoring its optional @<first storeID>.
+   private static List<Amazon> connectShards(String dbname, String user, String passwd, List<String> targets) throws SQLException {
+      List<Amazon> shards = new ArrayList<Amazon>();
+      for (String target : targets){
+         if (target.indexOf('@') >= 0)
+            target = target.substring(0, target.indexOf('@'));
+         shards.add(new Amazon(dbname, target, user, passwd));
+      }
+      return shards;
+   }
+
+   // Range placement when every --shard target names its first storeID;
+   // the home database then owns the stores below the first shard's range.
+   private static int[] parseFirstStoreIDs(List<String> targets) {
+      int[] firstStoreIDs = new int[targets.size() + 1];
+      firstStoreIDs[0] = Integer.MIN_VALUE;
+      for (int i = 0; i < targets.size(); i++){
+         String target = targets.get(i);
+         if (target.indexOf('@') < 0)
+            return null;
+         firstStoreIDs[i + 1] = Integer.parseInt(target.substring(target.indexOf('@') + 1));
+      }
+      return firstStoreIDs;
+   }
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -351,6 +1229,8 @@ public class Amazon {
          try { // read the integer, parse it and break.
             input = Integer.parseInt(in.readLine());
             break;
+         }catch (SessionInput.EndOfSession e) {
+            throw e;
          }catch (Exception e) {
             System.out.println("Your input is invalid!");
             continue;
@@ -367,7 +1247,7 @@ public class Amazon {
          System.out.print("\tEnter name: ");
          String name = in.readLine();
          System.out.print("\tEnter password: ");
-         String password = in.readLine();
+         String password = in.readPassword();
          System.out.print("\tEnter latitude: ");   
          String latitude = in.readLine();       //enter lat value between [0.0, 100.0]
          System.out.print("\tEnter longitude: ");  //enter long value between [0.0, 100.0]
@@ -375,9 +1255,9 @@ public class Amazon {
          
          String type="Customer";
 
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
+			String values = String.format("'%s','%s', %s, %s,'%s'", name, password, latitude, longitude, type);
 
-         esql.executeUpdate(query);
+         requests.execute(db -> db.executeInsertAllShards("USERS", "userID", "users_userid_seq", "name, password, latitude, longitude, type", values));
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -394,19 +1274,22 @@ public class Amazon {
          System.out.print("\tEnter name: ");
          String name = in.readLine();
          System.out.print("\tEnter password: ");
-         String password = in.readLine();
+         String password = in.readPassword();
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0){
-            System.out.printf("Welcome %s \n", name);
+         int userID = requests.execute(db -> {
+            String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
+            int userNum = db.executeQuery(query);
+            if (userNum == 0)
+               return -1;
             query = String.format("SELECT UserID FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-            List<List<String>> user_id_result = esql.executeQueryAndReturnResult(query);
-            current_user_id = Integer.parseInt(user_id_result.get(0).get(0));
-            
-            query = String.format("SELECT type FROM Users WHERE userID = %d", current_user_id);
-            List<List<String>> user_type_result = esql.executeQueryAndReturnResult(query);
-            current_user_type = (user_type_result.get(0).get(0)).trim();
+            List<List<String>> user_id_result = db.executeQueryAndReturnResult(query);
+            int id = Integer.parseInt(user_id_result.get(0).get(0));
+            current_user_type = getUserSession(db, id).get(2).trim();
+            return id;
+         });
+         if (userID >= 0){
+            System.out.printf("Welcome %s \n", name);
+            current_user_id = userID;
             System.out.println(current_user_type);
             return name;
          }
@@ -417,42 +1300,49 @@ public class Amazon {
       }
    }//end
 
-// Rest of the functions definition go in here
-
-   public static void viewStores(Amazon esql) {
-      try{
-
-         String query = String.format("SELECT latitude FROM Users WHERE userID = %d", current_user_id);
-         List<List<String>> user_lat_result = esql.executeQueryAndReturnResult(query);
-         double user_lat = Double.parseDouble(user_lat_result.get(0).get(0));
-
-         query = String.format("SELECT longitude FROM Users WHERE userID = %d", current_user_id);
-         List<List<String>> user_lon_result = esql.executeQueryAndReturnResult(query);
-         double user_lon = Double.parseDouble(user_lon_result.get(0).get(0));
+   /*
+    * Store locator: finds every store within the given distance of a point.
+    * Stores are read from all shards at once.
+    * @return the column names followed by the storeID, latitude and longitude of each store
+    **/
+   public static List<List<String>> findStoresWithin(Amazon esql, double lat, double lon, double distance) throws SQLException {
+      List<List<String>> result = new ArrayList<List<String>>();
+      result.add(Arrays.asList("storeid", "latitude", "longitude"));
+      List<List<String>> stores = esql.executeQueryAndReturnCachedResultAllStores("store", "SELECT storeID, latitude, longitude FROM Store ORDER BY storeID");
+      for (List<String> store : stores.subList(1, stores.size())){
+         double store_lat = Double.parseDouble(store.get(1));
+         double store_lon = Double.parseDouble(store.get(2));
+         if(calculateDistance (lat, lon, store_lat, store_lon) <= distance){
+            result.add(store);
+         }
+      }
+      return result;
+   }
 
-         List<Integer> valid_store_ids = new ArrayList<>();
-         for(int i=1;i<=20;i++){
+   /*
+    * Looks up the latitude, longitude and type of a user, from the client
+    * cache when it is on.
+    * @return the latitude, longitude and type of the user
+    **/
+   public static List<String> getUserSession(Amazon esql, int userID) throws SQLException {
+      String query = String.format("SELECT latitude, longitude, type FROM Users WHERE userID = %d", userID);
+      return esql.executeQueryAndReturnCachedResult("users_" + userID, query).get(1);
+   }
 
-            query = String.format("SELECT latitude FROM Store WHERE storeID = %d", i);
-            List<List<String>> store_lat_result = esql.executeQueryAndReturnResult(query);
-            double store_lat = Double.parseDouble(store_lat_result.get(0).get(0));
+   /*
+    * Prints the products of a store, from the client cache when it is on.
+    * @return the number of products printed
+    **/
+   public static int printProductCatalog(Amazon esql, int store_id) throws SQLException {
+      String query = String.format("SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = %d", store_id);
+      return esql.printResult(esql.forStore(store_id).executeQueryAndReturnCachedResult("product_" + store_id, query));
+   }
 
-            query = String.format("SELECT longitude FROM Store WHERE storeID = %d", i);
-            List<List<String>> store_lon_result = esql.executeQueryAndReturnResult(query);
-            double store_lon = Double.parseDouble(store_lon_result.get(0).get(0));
+// Rest of the functions definition go in here
 
-            if(calculateDistance (user_lat, user_lon, store_lat, store_lon)<= 30){
-               valid_store_ids.add(i);
-            }
-         }
-         query = String.format("SELECT storeid, latitude, longitude FROM STORE WHERE storeID = ");
-         for(int id = valid_store_ids.size()-1;id>=0;id--){
-            if(id==0)
-               query += String.format("%s",id);
-            else
-               query += String.format("%s OR storeID = ",id);
-         }
-         int rowCount = esql.executeQueryAndPrintResult(query);
+   public static void viewStores(Amazon esql) {
+      try{
+         int rowCount = requests.execute(new AmazonRequest.ViewStores(current_user_id));
          System.out.println ("Total row(s): " + rowCount);
       }
       catch(Exception e){
@@ -461,12 +1351,10 @@ public class Amazon {
    }
    public static void viewProducts(Amazon esql) {
       try{
-         Scanner input = new Scanner(System.in);
          System.out.print("\tEnter Store ID: ");
-         int store_id = input.nextInt();
+         int store_id = in.readInt();
 
-         String query = String.format("SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = %d", store_id);
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = requests.execute(new AmazonRequest.ViewProducts(store_id));
          System.out.println ("Total row(s): " + rowCount);
       }
       catch(Exception e){
@@ -475,59 +1363,21 @@ public class Amazon {
    }
    public static void placeOrder(Amazon esql) {
       try {
-         String query = String.format("SELECT latitude FROM Users WHERE userID = %d", current_user_id);
-         List<List<String>> user_lat_result = esql.executeQueryAndReturnResult(query);
-         double user_lat = Double.parseDouble(user_lat_result.get(0).get(0));
-
-         query = String.format("SELECT longitude FROM Users WHERE userID = %d", current_user_id);
-         List<List<String>> user_lon_result = esql.executeQueryAndReturnResult(query);
-         double user_lon = Double.parseDouble(user_lon_result.get(0).get(0));
-
-         List<Integer> valid_store_ids = new ArrayList<>();
-         for(int i=1;i<=20;i++){
-
-            query = String.format("SELECT latitude FROM Store WHERE storeID = %d", i);
-            List<List<String>> store_lat_result = esql.executeQueryAndReturnResult(query);
-            double store_lat = Double.parseDouble(store_lat_result.get(0).get(0));
-
-            query = String.format("SELECT longitude FROM Store WHERE storeID = %d", i);
-            List<List<String>> store_lon_result = esql.executeQueryAndReturnResult(query);
-            double store_lon = Double.parseDouble(store_lon_result.get(0).get(0));
-
-            if(calculateDistance (user_lat, user_lon, store_lat, store_lon)<= 30){
-               valid_store_ids.add(i);
-            }
-         }
-
-         query = String.format("SELECT storeid FROM STORE WHERE storeID = "); //output store names + id
-         for(int id = valid_store_ids.size()-1;id>=0;id--){
-            if(id==0)
-               query += String.format("%s",id);
-            else
-               query += String.format("%s OR storeID = ",id);
-         }
-         int rowCount = esql.executeQueryAndPrintResult(query); 
+         int rowCount = requests.execute(new AmazonRequest.ViewStores(current_user_id)); //output stores in range
          System.out.println ("Total row(s): " + rowCount);
       
-      	 Scanner input = new Scanner(System.in);
 	 System.out.print("\tEnter Store ID: ");
-         int store_id = input.nextInt();
-         input.nextLine();
-         query = String.format("SELECT productName FROM Product WHERE storeID = %d", store_id);  //output products from chosen store
-         rowCount = esql.executeQueryAndPrintResult(query);
+         int store_id = in.readInt();
+         rowCount = requests.execute(new AmazonRequest.ViewProductNames(store_id));  //output products from chosen store
          System.out.println ("Total row(s): " + rowCount);
 
          System.out.print("\tEnter Product Name: ");
-         String product_name = input.nextLine();
+         String product_name = in.readLine();
 
          System.out.print("\tEnter number of units to order: ");
-         int num_units = input.nextInt();
-         query = String.format("UPDATE Product SET numberOfUnits = numberOfUnits - %d WHERE productName = '%s'", num_units, product_name);
-         esql.executeUpdate(query);
-      
-         query = String.format("Insert INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES (%d, %d, '%s', %d, CAST(CURRENT_TIMESTAMP AS TIMESTAMP(0)))", current_user_id, store_id, product_name, num_units);
-	 esql.executeUpdate(query);
-	 System.out.println("\t" + num_units + " units of " + product_name + " have been ordered."); 
+         int num_units = in.readInt();
+         int order_number = requests.execute(new AmazonRequest.PlaceOrder(current_user_id, store_id, product_name, num_units));
+	 System.out.println("\t" + num_units + " units of " + product_name + " have been ordered (order number " + order_number + ")."); 
       }
       catch (Exception e){
          System.err.println (e.getMessage ());
@@ -536,9 +1386,7 @@ public class Amazon {
    
    public static void viewRecentOrders(Amazon esql) {
       try{
-         String query;
-         query = String.format("SELECT storeID, productName, unitsOrdered, orderTime FROM Orders WHERE customerID = %d ORDER BY orderTime DESC LIMIT 5", current_user_id);
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = requests.execute(new AmazonRequest.ViewRecentOrders(current_user_id));
          System.out.println ("Total row(s): " + rowCount);
       }
       catch(Exception e){
@@ -548,62 +1396,40 @@ public class Amazon {
    public static void updateProduct(Amazon esql) {
       try{
          String temp = "manager";
-         String query;
          if(current_user_type.equals(temp)){
-            query = String.format("SELECT storeID FROM Store WHERE managerID = %d", current_user_id);
-            List<List<String>> store_id_result = esql.executeQueryAndReturnResult(query);
-            query = String.format("SELECT storeid FROM STORE WHERE storeID = "); //output stores by id
-            for(int id = store_id_result.size()-1;id>=0;id--){
-               if(id==0)
-                  query += String.format("%s",id);
-               else
-                  query += String.format("%s OR storeID = ",id);
-            }
-            int rowCount = esql.executeQueryAndPrintResult(query); 
+            int rowCount = requests.execute(new AmazonRequest.ViewManagedStores(current_user_id)); //output manager's stores
             System.out.println ("Total row(s): " + rowCount);
 
-            Scanner input = new Scanner(System.in);
             System.out.print("\tEnter Store ID: ");
-            int store_id = input.nextInt();
-            input.nextLine();
+            int store_id = in.readInt();
 
-            query = String.format("SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = %d", store_id);  //output products from chosen store
-            rowCount = esql.executeQueryAndPrintResult(query);
+            rowCount = requests.execute(new AmazonRequest.ViewProducts(store_id));  //output products from chosen store
             System.out.println ("Total row(s): " + rowCount);
 
             System.out.print("\tEnter Product Name: ");
-            String product_name = input.nextLine();
+            String product_name = in.readLine();
 
+            Integer new_num_units = null;
             System.out.print("\tUpdate number of units? Y/N: ");
-            String updateunitsbool = input.nextLine();
-
+            String updateunitsbool = in.readLine();
             if(updateunitsbool.contains("Y")){
                System.out.print("\tEnter new number of units: ");
-               int new_num_units = input.nextInt();
-               input.nextLine();
-
-               query = String.format("UPDATE Product SET numberofUnits = %d WHERE productName = '%s'", new_num_units, product_name);
-               esql.executeUpdate(query);
-               System.out.println("Updated " + product_name + " to " + new_num_units + " number of units.");
-               
+               new_num_units = in.readInt();
             }
+
+            Integer new_price = null;
             System.out.print("\tUpdate price per unit? Y/N: ");
-            String updatepricebool = input.nextLine();
+            String updatepricebool = in.readLine();
             if(updatepricebool.contains("Y")){
                System.out.print("\tEnter new price per unit: ");
-               int new_price = input.nextInt();
-               input.nextLine();
-
-               query = String.format("UPDATE Product SET pricePerUnit = %d WHERE productName = '%s'", new_price, product_name);
-               esql.executeUpdate(query);
-               System.out.println("Updated " + product_name + " to $" + new_price + " per unit.");
-            }
-            
-            if(updateunitsbool.contains("Y") || updatepricebool.contains("Y")){
-               query = String.format("Insert INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES (%d, %d, '%s', CAST(CURRENT_TIMESTAMP AS TIMESTAMP(0)))", current_user_id, store_id, product_name);
-               esql.executeUpdate(query);
+               new_price = in.readInt();
             }
 
+            requests.execute(new AmazonRequest.UpdateProduct(current_user_id, store_id, product_name, new_num_units, new_price));
+            if(new_num_units != null)
+               System.out.println("Updated " + product_name + " to " + new_num_units + " number of units.");
+            if(new_price != null)
+               System.out.println("Updated " + product_name + " to $" + new_price + " per unit.");
          }
          else{
             System.out.println ("Only Managers can use this function");
@@ -618,9 +1444,7 @@ public class Amazon {
        try{
          String temp = "manager";
          if(current_user_type.equals(temp)){
-            String query;
-            query = String.format("SELECT updateNumber, storeID, productName, updatedOn FROM ProductUpdates WHERE managerID = %d ORDER BY updatedOn DESC LIMIT 5", current_user_id);
-            int rowCount = esql.executeQueryAndPrintResult(query);
+            int rowCount = requests.execute(new AmazonRequest.ViewRecentUpdates(current_user_id));
             System.out.println ("Total row(s): " + rowCount);
 
          }
@@ -638,18 +1462,13 @@ public class Amazon {
       try{
          String temp = "manager";
          if(current_user_type.equals(temp)){
-            String query;
-            query = String.format("SELECT storeID FROM Store WHERE managerID = %d", current_user_id);
-            int rowCount = esql.executeQueryAndPrintResult(query); 
+            int rowCount = requests.execute(new AmazonRequest.ViewManagedStores(current_user_id)); //output manager's stores
             System.out.println ("Total row(s): " + rowCount);
 
-            Scanner input = new Scanner(System.in);
             System.out.print("\tEnter Store ID: ");
-            int store_id = input.nextInt();
-            input.nextLine();
+            int store_id = in.readInt();
 
-            query = String.format("SELECT productName, COUNT(*) as orderCount FROM Orders WHERE storeID = %d GROUP BY productName ORDER BY orderCount DESC LIMIT 5", store_id);
-            rowCount = esql.executeQueryAndPrintResult(query);
+            rowCount = requests.execute(new AmazonRequest.ViewPopularProducts(store_id));
             System.out.println ("Total row(s): " + rowCount);
          }
          else{
@@ -666,28 +1485,13 @@ public class Amazon {
          String temp = "manager";
          if(current_user_type.equals(temp)){
 
-            String query;
-            query = String.format("SELECT storeID FROM Store WHERE managerID = %d", current_user_id);
-            int rowCount = esql.executeQueryAndPrintResult(query); 
+            int rowCount = requests.execute(new AmazonRequest.ViewManagedStores(current_user_id)); //output manager's stores
             System.out.println ("Total row(s): " + rowCount);
 
-            Scanner input = new Scanner(System.in);
             System.out.print("\tEnter Store ID: ");
-            int store_id = input.nextInt();
-            input.nextLine();
+            int store_id = in.readInt();
 
-            
-            query = String.format("SELECT customerID , COUNT(*) as customerCount FROM Orders WHERE storeID = %d GROUP BY customerID ORDER BY customerCount DESC LIMIT 5", store_id); //get manager's stores
-            List<List<String>> customer_id_result = esql.executeQueryAndReturnResult(query);
-
-            query = String.format("SELECT userID, name FROM Users WHERE userID = ");
-            for(int id = customer_id_result.size()-1; id >= 0; id--){   
-               if(id==0)
-                  query += String.format("%s",customer_id_result.get(id).get(0));
-               else
-                  query += String.format("%s OR userID = ",customer_id_result.get(id).get(0));
-            }
-            rowCount = esql.executeQueryAndPrintResult(query);
+            rowCount = requests.execute(new AmazonRequest.ViewPopularCustomers(store_id));
             System.out.println ("Total row(s): " + rowCount);
          }
          else{
@@ -702,47 +1506,28 @@ public class Amazon {
    public static void placeProductSupplyRequests(Amazon esql) {
       try{
          String temp = "manager";
-         String query;
 	 if(current_user_type.equals(temp)){
-            query = String.format("SELECT storeID FROM Store WHERE managerID = %d", current_user_id);
-            List<List<String>> store_id_result = esql.executeQueryAndReturnResult(query);
-            query = String.format("SELECT storeid FROM STORE WHERE storeID = "); //output stores by id
-            for(int id = store_id_result.size()-1;id>=0;id--){
-               if(id==0)
-                  query += String.format("%s",id);
-               else
-                  query += String.format("%s OR storeID = ",id);
-            }
-            int rowCount = esql.executeQueryAndPrintResult(query); 
+            int rowCount = requests.execute(new AmazonRequest.ViewManagedStores(current_user_id)); //output manager's stores
             System.out.println ("Total row(s): " + rowCount);
 
-            Scanner input = new Scanner(System.in);
             System.out.print("\tEnter Store ID: ");
-            int store_id = input.nextInt();
-            input.nextLine();
+            int store_id = in.readInt();
 
-            query = String.format("SELECT productName FROM Product WHERE storeID = %d", store_id);  //output products from chosen store
-            rowCount = esql.executeQueryAndPrintResult(query);
+            rowCount = requests.execute(new AmazonRequest.ViewProductNames(store_id));  //output products from chosen store
             System.out.println ("Total row(s): " + rowCount);
 
             System.out.print("\tEnter Product Name: ");
-            String product_name = input.nextLine();
+            String product_name = in.readLine();
 	    
-	    query = String.format("SELECT WarehouseID FROM Warehouse");
-            rowCount = esql.executeQueryAndPrintResult(query);
+            rowCount = requests.execute(new AmazonRequest.ViewWarehouses());
             System.out.println("Total row(s): " + rowCount);
 
             System.out.print("\tEnter Warehouse ID: ");
-            int warehouse_id = input.nextInt();
-            input.nextLine();
+            int warehouse_id = in.readInt();
             
             System.out.print("\tEnter number of units needed: ");
-            int num_units = input.nextInt();
-            query = String.format("UPDATE Product SET numberOfUnits = numberOfUnits + %d WHERE productName = '%s'", num_units, product_name);
-            esql.executeUpdate(query);
-
-            query = String.format("Insert INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (%d, %d, %d, '%s', %d)", current_user_id, warehouse_id, store_id, product_name, num_units);
-            esql.executeUpdate(query);
+            int num_units = in.readInt();
+            requests.execute(new AmazonRequest.PlaceSupplyRequest(current_user_id, warehouse_id, store_id, product_name, num_units));
             System.out.println("\t" + num_units + " units of " + product_name + " have been requested.");
          }
          else{
@@ -758,18 +1543,13 @@ public class Amazon {
       try{
          String temp = "manager";
          if(current_user_type.equals(temp)){
-            String query;
-            query = String.format("SELECT storeID FROM Store WHERE managerID = %d", current_user_id);
-            int rowCount = esql.executeQueryAndPrintResult(query); 
+            int rowCount = requests.execute(new AmazonRequest.ViewManagedStores(current_user_id)); //output manager's stores
             System.out.println ("Total row(s): " + rowCount);
 
-            Scanner input = new Scanner(System.in);
             System.out.print("\tEnter Store ID: ");
-            int store_id = input.nextInt();
-            input.nextLine();
+            int store_id = in.readInt();
             
-            query = String.format("SELECT O.orderNumber, U.name, O.storeID, O.productName, O.orderTime FROM Orders O, Users U WHERE O.storeID = %d AND O.customerID = U.userID", store_id);
-            rowCount = esql.executeQueryAndPrintResult(query);
+            rowCount = requests.execute(new AmazonRequest.ViewAllOrders(store_id));
             System.out.println ("Total row(s): " + rowCount);
          }
          else{
@@ -782,6 +1562,91 @@ public class Amazon {
       }  
    }
 
+   public static void viewSalesTrends(Amazon esql) {
+      try{
+         String temp = "manager";
+         if(current_user_type.equals(temp)){
+            int rowCount = requests.execute(new AmazonRequest.ViewManagedStores(current_user_id)); //output manager's stores
+            System.out.println ("Total row(s): " + rowCount);
+
+            System.out.print("\tEnter Store ID: ");
+            int store_id = in.readInt();
+
+            System.out.print("\tEnter start (yyyy-MM-dd [HH:mm], blank for first order): ");
+            String from = in.readLine().trim();
+            System.out.print("\tEnter end (yyyy-MM-dd [HH:mm], blank for now): ");
+            String to = in.readLine().trim();
+
+            long start = System.nanoTime();
+            rowCount = requests.execute(new AmazonRequest.ViewSalesTrend(store_id, parseWindowBound(from), parseWindowBound(to)));
+            System.out.println ("Total row(s): " + rowCount);
+            System.out.printf ("Computed in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+         }
+         else{
+            System.out.println ("Only Managers can use this function");
+         }
+
+      }
+      catch(Exception e){
+         System.err.println (e.getMessage ());
+      }  
+   }
+
+   public static void exportReport(Amazon esql) {
+      try{
+         String temp = "manager";
+         if(current_user_type.equals(temp)){
+            int rowCount = requests.execute(new AmazonRequest.ViewManagedStores(current_user_id)); //output manager's stores
+            System.out.println ("Total row(s): " + rowCount);
+
+            System.out.print("\tEnter Store ID: ");
+            int store_id = in.readInt();
+
+            System.out.println("\t1. All Orders");
+            System.out.println("\t2. 5 Popular Items");
+            System.out.println("\t3. Supply Requests");
+            int report;
+            // asks again until a listed report is chosen, as readChoice does
+            do {
+               System.out.print("\tEnter report: ");
+               try {
+                  report = Integer.parseInt(in.readLine().trim());
+               }catch (NumberFormatException e) {
+                  report = 0;
+               }
+               if (report < 1 || report > AmazonRequest.ExportReport.REPORTS.length)
+                  System.out.println("Your input is invalid!");
+            }while (report < 1 || report > AmazonRequest.ExportReport.REPORTS.length);
+
+            String file = String.format("%s_store%d.amzr", AmazonRequest.ExportReport.REPORTS[report - 1], store_id);
+            System.out.print("\tEnter file name (blank for " + file + "): ");
+            String name = in.readLine().trim();
+            if (!name.isEmpty())
+               file = name;
+
+            long start = System.nanoTime();
+            rowCount = requests.execute(new AmazonRequest.ExportReport(store_id, report, file));
+            System.out.printf ("%d row(s) written to %s in %.2f s%n", rowCount, file, (System.nanoTime() - start) / 1e9);
+         }
+         else{
+            System.out.println ("Only Managers can use this function");
+         }
+
+      }
+      catch(Exception e){
+         System.err.println (e.getMessage ());
+      }  
+   }
+
+   // Epoch seconds of yyyy-MM-dd or yyyy-MM-dd HH:mm, or null when blank.
+   private static Long parseWindowBound(String value) {
+      if (value.isEmpty())
+         return null;
+      if (value.length() == "yyyy-MM-dd".length())
+         value += " 00:00";
+      return SalesRollup.parseTimestamp(value + ":00");
+   }
+
       public static void adminViewEdit (Amazon esql){
       try{
          String temp = "admin";
@@ -821,7 +1686,7 @@ public class Amazon {
       try{
          String query;
          query = "SELECT * FROM USERS";
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = requests.execute(db -> db.executeQueryAndPrintResult(query));
          System.out.println ("Total row(s): " + rowCount);
       }
       catch(Exception e){
@@ -833,7 +1698,7 @@ public class Amazon {
       try{
          String query;
          query = "SELECT * FROM Product";
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = requests.execute(db -> db.executeQueryAndPrintResultAllStores(query));
          System.out.println ("Total row(s): " + rowCount);
       }
       catch(Exception e){
@@ -843,29 +1708,36 @@ public class Amazon {
 
    public static void adminUpdateUser(Amazon esql) {
       try{
-         Scanner input = new Scanner(System.in);
          System.out.print("\tEnter User ID of User you would like to update: ");
-         int userID = input.nextInt();
-         input.nextLine();
+         int userID = in.readInt();
          String query = String.format("SELECT * FROM USERS WHERE userID = '%s'", userID);
-         int userNum = esql.executeQuery(query);
-         if(userNum == 0){
+         List<List<String>> user = new ArrayList<List<String>>();
+         requests.execute(db -> {
+            user.addAll(db.executeQueryAndReturnResultWithHeader(query, true));
+            return user.size();
+         });
+         if(user.size() < 2){
             System.out.println ("A User with that User ID does not exist");
             return;
          }
          System.out.print("\tEnter User name: ");
          String username = in.readLine();
          System.out.print("\tEnter User password: ");
-         String password = in.readLine();
+         String password = in.readPassword();
          System.out.print("\tEnter User latitude: ");
-         double latitude = input.nextDouble();
+         double latitude = in.readDouble();
          System.out.print("\tEnter User longitude: ");
-         double longitude = input.nextDouble();
-         input.nextLine();
+         double longitude = in.readDouble();
          System.out.print("\tEnter User type: ");
          String type = in.readLine();
-         query = String.format("UPDATE USERS SET name = '%s', password = '%s', latitude = %.6f, longitude = %.6f, type = '%s' WHERE userID = %d ", username, password, latitude, longitude, type, userID );
-	      esql.executeUpdate(query);
+         String update = String.format("UPDATE USERS SET name = '%s', password = '%s', latitude = %.6f, longitude = %.6f, type = '%s' WHERE userID = %d ", username, password, latitude, longitude, type, userID );
+         // puts the old row back on shards that committed, should another fail
+         List<String> old = user.get(1);
+         String undo = String.format("UPDATE USERS SET name = '%s', password = '%s', latitude = %s, longitude = %s, type = '%s' WHERE userID = %d ", old.get(1).trim(), old.get(2).trim(), old.get(3), old.get(4), old.get(5).trim(), userID );
+         requests.execute(db -> {
+            db.executeUpdateAllShards(update, undo);
+            return 0;
+         });
       }
       catch(Exception e){
          System.err.println (e.getMessage ());
@@ -874,25 +1746,25 @@ public class Amazon {
 
    public static void adminUpdateProduct(Amazon esql) {
       try{
-         Scanner input = new Scanner(System.in);
          System.out.print("\tEnter store ID of the product you would like to update: ");
-         int storeID = input.nextInt();
-         input.nextLine();
+         int storeID = in.readInt();
          System.out.print("\tEnter the name of the product you would like to update: ");
          String productName = in.readLine();
          String query = String.format("SELECT * FROM Product WHERE storeID = '%s' AND productName = '%s'", storeID,productName);
-         int userNum = esql.executeQuery(query);
+         int userNum = requests.execute(db -> db.forStore(storeID).executeQuery(query));
          if(userNum == 0){
             System.out.println ("A product with that store ID and product name does not exist");
             return;
          }
          System.out.print("\tEnter number of units: ");
-         int numberOfUnits = input.nextInt();
+         int numberOfUnits = in.readInt();
          System.out.print("\tEnter price per unit: ");
-         double pricePerUnit = input.nextDouble();
-         input.nextLine();
-         query = String.format("UPDATE Product SET numberOfUnits = %d, pricePerUnit = %.6f WHERE storeID = %d AND productName = '%s'", numberOfUnits, pricePerUnit, storeID, productName);
-	      esql.executeUpdate(query);
+         double pricePerUnit = in.readDouble();
+         String update = String.format("UPDATE Product SET numberOfUnits = %d, pricePerUnit = %.6f WHERE storeID = %d AND productName = '%s'", numberOfUnits, pricePerUnit, storeID, productName);
+         requests.execute(db -> {
+            db.forStore(storeID).executeUpdate(update);
+            return 0;
+         });
       }
       catch(Exception e){
          System.err.println (e.getMessage ());
@@ -0,0 +1,432 @@
+/*
+ * Requests of the Amazon user interface
+ * ======================================
+ *
+ * Each menu operation, once its input has been read, is one of these request
+ * objects. They carry every value they need (user IDs included) instead of
+ * reading the logged in user from Amazon, so the same request can run from
+ * the menu or from many simulated sessions at once on a RequestExecutor.
+ *
+ */
+
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A database operation of the user interface.
+ */
+public interface AmazonRequest {
+
+   /**
+    * Runs the request on the given connection, printing its result unless
+    * the connection is quiet.
+    *
+    * @param esql the connection to run on
+    * @return the number of rows printed, or the key of the inserted row
+    * @throws java.sql.SQLException when a statement failed
+    */
+   int execute(Amazon esql) throws SQLException;
+
+   /*
+    * Stores within 30 miles of a user
+    **/
+   public static class ViewStores implements AmazonRequest {
+      private int _userID;
+
+      public ViewStores(int userID) {
+         this._userID = userID;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         List<String> user = Amazon.getUserSession(esql, this._userID);
+         double user_lat = Double.parseDouble(user.get(0));
+         double user_lon = Double.parseDouble(user.get(1));
+         return esql.printResult(Amazon.findStoresWithin(esql, user_lat, user_lon, 30));
+      }
+   }//end ViewStores
+
+   /*
+    * Products, units and prices of a store
+    **/
+   public static class ViewProducts implements AmazonRequest {
+      private int _storeID;
+
+      public ViewProducts(int storeID) {
+         this._storeID = storeID;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         return Amazon.printProductCatalog(esql, this._storeID);
+      }
+   }//end ViewProducts
+
+   /*
+    * Names of the products of a store
+    **/
+   public static class ViewProductNames implements AmazonRequest {
+      private int _storeID;
+
+      public ViewProductNames(int storeID) {
+         this._storeID = storeID;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         String query = String.format("SELECT productName FROM Product WHERE storeID = %d", this._storeID);
+         return esql.forStore(this._storeID).executeQueryAndPrintResult(query);
+      }
+   }//end ViewProductNames
+
+   /*
+    * Takes units of a product out of a store's stock and records the order.
+    * Fails when the store does not sell the product. Returns the new order
+    * number.
+    **/
+   public static class PlaceOrder implements AmazonRequest {
+      private int _customerID;
+      private int _storeID;
+      private String _productName;
+      private int _units;
+
+      public PlaceOrder(int customerID, int storeID, String productName, int units) {
+         this._customerID = customerID;
+         this._storeID = storeID;
+         this._productName = productName;
+         this._units = units;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         Amazon shard = esql.forStore(this._storeID);
+         checkProduct(shard, this._storeID, this._productName);
+         String query = String.format("UPDATE Product SET numberOfUnits = numberOfUnits - %d WHERE storeID = %d AND productName = '%s'", this._units, this._storeID, this._productName);
+         shard.executeUpdate(query);
+
+         query = String.format("Insert INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES (%d, %d, '%s', %d, CAST(CURRENT_TIMESTAMP AS TIMESTAMP(0)))", this._customerID, this._storeID, this._productName, this._units);
+         int orderNumber = shard.executeInsertAndReturnKey(query, "orderNumber");
+         shard.rollUpNewOrders();
+         return orderNumber;
+      }
+   }//end PlaceOrder
+
+   /*
+    * Places several orders of one customer at one store with a single
+    * UPDATE of the stock and a single INSERT. Order numbers come from a
+    * KeyBlockAllocator, so no key has to be read back. Returns the number of
+    * orders placed.
+    **/
+   public static class PlaceOrders implements AmazonRequest {
+      private int _customerID;
+      private int _storeID;
+      private List<String> _productNames;
+      private List<Integer> _units;
+      private KeyBlockAllocator _orderNumbers;
+
+      public PlaceOrders(int customerID, int storeID, List<String> productNames, List<Integer> units, KeyBlockAllocator orderNumbers) {
+         this._customerID = customerID;
+         this._storeID = storeID;
+         this._productNames = productNames;
+         this._units = units;
+         this._orderNumbers = orderNumbers;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         Amazon shard = esql.forStore(this._storeID);
+         List<String> values = new ArrayList<String>();
+         LinkedHashMap<String, Integer> units = new LinkedHashMap<String, Integer>();
+         for (int i = 0; i < this._productNames.size(); i++){
+            units.merge(this._productNames.get(i), this._units.get(i), Integer::sum);
+            values.add(String.format("(%d, %d, %d, '%s', %d, CAST(CURRENT_TIMESTAMP AS TIMESTAMP(0)))", this._orderNumbers.nextKey(shard), this._customerID, this._storeID, this._productNames.get(i), this._units.get(i)));
+         }
+         if (values.isEmpty())
+            return 0;
+         String cases = "", names = "";
+         for (Map.Entry<String, Integer> product : units.entrySet()){
+            cases += String.format(" WHEN '%s' THEN %d", product.getKey(), product.getValue());
+            names += (names.isEmpty() ? "" : ", ") + "'" + product.getKey() + "'";
+         }
+         shard.executeUpdate(String.format("UPDATE Product SET numberOfUnits = numberOfUnits - CASE productName%s END WHERE storeID = %d AND productName IN (%s)", cases, this._storeID, names));
+         shard.executeUpdate("Insert INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) VALUES " + String.join(", ", values));
+         shard.rollUpNewOrders();
+         return values.size();
+      }
+   }//end PlaceOrders
+
+   /*
+    * The 5 most recent orders of a customer
+    **/
+   public static class ViewRecentOrders implements AmazonRequest {
+      private int _customerID;
+
+      public ViewRecentOrders(int customerID) {
+         this._customerID = customerID;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         String query = String.format("SELECT storeID, productName, unitsOrdered, orderTime FROM Orders WHERE customerID = %d ORDER BY orderTime DESC LIMIT 5", this._customerID);
+         return esql.executeQueryAndPrintTopAllStores(query, 3, 5);
+      }
+   }//end ViewRecentOrders
+
+   /*
+    * Sets the units and/or the price of a product and logs the update.
+    * A null value leaves that column as it is. Returns the new update number,
+    * or 0 when nothing was changed.
+    **/
+   public static class UpdateProduct implements AmazonRequest {
+      private int _managerID;
+      private int _storeID;
+      private String _productName;
+      private Integer _units;
+      private Integer _price;
+
+      public UpdateProduct(int managerID, int storeID, String productName, Integer units, Integer price) {
+         this._managerID = managerID;
+         this._storeID = storeID;
+         this._productName = productName;
+         this._units = units;
+         this._price = price;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         Amazon shard = esql.forStore(this._storeID);
+         String query;
+         if (this._units != null){
+            query = String.format("UPDATE Product SET numberofUnits = %d WHERE storeID = %d AND productName = '%s'", this._units, this._storeID, this._productName);
+            shard.executeUpdate(query);
+         }
+         if (this._price != null){
+            query = String.format("UPDATE Product SET pricePerUnit = %d WHERE storeID = %d AND productName = '%s'", this._price, this._storeID, this._productName);
+            shard.executeUpdate(query);
+         }
+         if (this._units == null && this._price == null)
+            return 0;
+         query = String.format("Insert INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES (%d, %d, '%s', CAST(CURRENT_TIMESTAMP AS TIMESTAMP(0)))", this._managerID, this._storeID, this._productName);
+         return shard.executeInsertAndReturnKey(query, "updateNumber");
+      }
+   }//end UpdateProduct
+
+   /*
+    * The 5 most recent product updates of a manager
+    **/
+   public static class ViewRecentUpdates implements AmazonRequest {
+      private int _managerID;
+
+      public ViewRecentUpdates(int managerID) {
+         this._managerID = managerID;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         String query = String.format("SELECT updateNumber, storeID, productName, updatedOn FROM ProductUpdates WHERE managerID = %d ORDER BY updatedOn DESC LIMIT 5", this._managerID);
+         return esql.executeQueryAndPrintTopAllStores(query, 3, 5);
+      }
+   }//end ViewRecentUpdates
+
+   /*
+    * The 5 most ordered products of a store
+    **/
+   public static class ViewPopularProducts implements AmazonRequest {
+      private int _storeID;
+
+      public ViewPopularProducts(int storeID) {
+         this._storeID = storeID;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         String query = String.format("SELECT productName, COUNT(*) as orderCount FROM Orders WHERE storeID = %d GROUP BY productName ORDER BY orderCount DESC LIMIT 5", this._storeID);
+         return esql.forStore(this._storeID).executeQueryAndPrintResult(query);
+      }
+   }//end ViewPopularProducts
+
+   /*
+    * The 5 customers with the most orders at a store
+    **/
+   public static class ViewPopularCustomers implements AmazonRequest {
+      private int _storeID;
+
+      public ViewPopularCustomers(int storeID) {
+         this._storeID = storeID;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         String query = String.format("SELECT customerID , COUNT(*) as customerCount FROM Orders WHERE storeID = %d GROUP BY customerID ORDER BY customerCount DESC LIMIT 5", this._storeID);
+         List<List<String>> customer_id_result = esql.forStore(this._storeID).executeQueryAndReturnResult(query);
+         if (customer_id_result.isEmpty())
+            return 0;
+
+         query = String.format("SELECT userID, name FROM Users WHERE userID = ");
+         for(int id = customer_id_result.size()-1; id >= 0; id--){
+            if(id==0)
+               query += String.format("%s",customer_id_result.get(id).get(0));
+            else
+               query += String.format("%s OR userID = ",customer_id_result.get(id).get(0));
+         }
+         return esql.executeQueryAndPrintResult(query);
+      }
+   }//end ViewPopularCustomers
+
+   /*
+    * Stores run by a manager
+    **/
+   public static class ViewManagedStores implements AmazonRequest {
+      private int _managerID;
+
+      public ViewManagedStores(int managerID) {
+         this._managerID = managerID;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         String query = String.format("SELECT storeID FROM Store WHERE managerID = %d", this._managerID);
+         return esql.executeQueryAndPrintResultAllStores(query);
+      }
+   }//end ViewManagedStores
+
+   /*
+    * IDs of all warehouses
+    **/
+   public static class ViewWarehouses implements AmazonRequest {
+      public int execute(Amazon esql) throws SQLException {
+         return esql.executeQueryAndPrintResult("SELECT WarehouseID FROM Warehouse");
+      }
+   }//end ViewWarehouses
+
+   /*
+    * Restocks a product from a warehouse and records the supply request.
+    * Fails when the store does not sell the product or the warehouse does
+    * not exist. Returns the new request number.
+    **/
+   public static class PlaceSupplyRequest implements AmazonRequest {
+      private int _managerID;
+      private int _warehouseID;
+      private int _storeID;
+      private String _productName;
+      private int _units;
+
+      public PlaceSupplyRequest(int managerID, int warehouseID, int storeID, String productName, int units) {
+         this._managerID = managerID;
+         this._warehouseID = warehouseID;
+         this._storeID = storeID;
+         this._productName = productName;
+         this._units = units;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         Amazon shard = esql.forStore(this._storeID);
+         checkProduct(shard, this._storeID, this._productName);
+         String query = String.format("SELECT WarehouseID FROM Warehouse WHERE WarehouseID = %d", this._warehouseID);
+         if (shard.executeQuery(query) == 0)
+            throw new SQLException("Warehouse " + this._warehouseID + " does not exist");
+
+         query = String.format("UPDATE Product SET numberOfUnits = numberOfUnits + %d WHERE storeID = %d AND productName = '%s'", this._units, this._storeID, this._productName);
+         shard.executeUpdate(query);
+
+         query = String.format("Insert INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (%d, %d, %d, '%s', %d)", this._managerID, this._warehouseID, this._storeID, this._productName, this._units);
+         return shard.executeInsertAndReturnKey(query, "requestNumber");
+      }
+   }//end PlaceSupplyRequest
+
+   /*
+    * Every order of a store with the customer's name
+    **/
+   public static class ViewAllOrders implements AmazonRequest {
+      private int _storeID;
+
+      public ViewAllOrders(int storeID) {
+         this._storeID = storeID;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         String query = String.format("SELECT O.orderNumber, U.name, O.storeID, O.productName, O.orderTime FROM Orders O, Users U WHERE O.storeID = %d AND O.customerID = U.userID", this._storeID);
+         return esql.forStore(this._storeID).executeQueryAndPrintResult(query);
+      }
+   }//end ViewAllOrders
+
+   /*
+    * Units and revenue of a store over a window, per hour for windows of up
+    * to two days and per day otherwise, then per product. A null bound means
+    * the first order or now. Returns the number of periods printed.
+    **/
+   public static class ViewSalesTrend implements AmazonRequest {
+      private int _storeID;
+      private Long _from;
+      private Long _to;
+
+      public ViewSalesTrend(int storeID, Long from, Long to) {
+         this._storeID = storeID;
+         this._from = from;
+         this._to = to;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         SalesRollup rollup = esql.forStore(this._storeID).salesRollup();
+         long[] extent = rollup.extent(this._storeID);
+         long from = this._from != null ? this._from : extent != null ? extent[0] : 0;
+         long now = System.currentTimeMillis() / 1000;
+         long to = this._to != null ? this._to : extent != null ? Math.max(extent[1], now) : now;
+         long step = to - from <= 2 * SalesRollup.DAY ? SalesRollup.HOUR : SalesRollup.DAY;
+         int periods = esql.printResult(rollup.trend(this._storeID, from, to, step));
+         esql.printResult(rollup.productTotals(this._storeID, from, to));
+         return periods;
+      }
+   }//end ViewSalesTrend
+
+   /*
+    * Streams one of a store's reports to a ReportWriter file: 1 all orders,
+    * 2 popular items, 3 supply requests. Returns the number of rows written.
+    **/
+   public static class ExportReport implements AmazonRequest {
+      public static final String[] REPORTS = {"orders", "popular_items", "supply_requests"};
+
+      private int _storeID;
+      private int _report;
+      private String _file;
+
+      public ExportReport(int storeID, int report, String file) {
+         this._storeID = storeID;
+         this._report = report;
+         this._file = file;
+      }
+
+      public int execute(Amazon esql) throws SQLException {
+         String query;
+         switch (this._report) {
+            case 1: query = String.format("SELECT O.orderNumber, U.name, O.storeID, O.productName, O.orderTime FROM Orders O, Users U WHERE O.storeID = %d AND O.customerID = U.userID", this._storeID); break;
+            case 2: query = String.format("SELECT productName, COUNT(*) as orderCount FROM Orders WHERE storeID = %d GROUP BY productName ORDER BY orderCount DESC LIMIT 5", this._storeID); break;
+            case 3: query = String.format("SELECT requestNumber, managerID, warehouseID, storeID, productName, unitsRequested FROM ProductSupplyRequests WHERE storeID = %d", this._storeID); break;
+            default: throw new SQLException("Unknown report " + this._report);
+         }
+         ReportWriter writer = null;
+         try {
+            writer = new ReportWriter(this._file);
+            esql.forStore(this._storeID).executeQueryAndStreamResult(query, writer);
+            return (int) writer.close();
+         } catch (SQLException | IOException e) {
+            // leave no partial, unreadable report behind
+            if (writer != null) {
+               try {
+                  writer.abort();
+               } catch (IOException cleanup) {
+                  e.addSuppressed(cleanup);
+               }
+            }
+            if (e instanceof SQLException)
+               throw (SQLException) e;
+            SQLException failure = new SQLException("Export to " + this._file + " failed: " + e.getMessage());
+            failure.initCause(e);
+            throw failure;
+         }
+      }
+   }//end ExportReport
+
+   // Fails unless the store sells the product, so that no stock is changed
+   // for an order or supply request whose insert would then be rejected.
+   private static void checkProduct(Amazon shard, int storeID, String productName) throws SQLException {
+      String query = String.format("SELECT * FROM Product WHERE storeID = %d AND productName = '%s'", storeID, productName);
+      if (shard.executeQuery(query) == 0)
+         throw new SQLException("Store " + storeID + " does not sell " + productName);
+   }
+
+}//end AmazonRequest
@@ -0,0 +1,157 @@
+/*
+ * Change notification listener for the Amazon user interface
+ * ===========================================================
+ *
+ * Holds its own connection to the primary, LISTENs on the channels of the
+ * cached entries and drops an entry from the ClientCache as soon as the
+ * triggers in sql/src/create_triggers.sql announce a change to it, no matter
+ * which client made the change.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Polls the server for notifications on a background thread.
+ *
+ * The driver only picks up notifications while it talks to the server, so
+ * the thread sends a trivial query every POLL_MS. Notifications caused by the
+ * writes of this client (same backend PID as its main connection) are timed
+ * from the write to the invalidation to report the invalidation latency.
+ */
+public class ChangeListener extends Thread {
+
+   // how often the server is asked for pending notifications
+   public static final long POLL_MS = 50;
+
+   // dedicated connection, only used while holding its monitor
+   private Connection _connection;
+
+   // channels this connection already LISTENs on
+   private Set<String> _channels = ConcurrentHashMap.newKeySet();
+
+   // the cache the notifications are applied to
+   private ClientCache _cache;
+
+   // backend PID of the client's main connection and the time of its last write
+   private int _writerPid;
+   private volatile long _lastWriteNanos = 0;
+
+   // invalidation latency of this client's own writes
+   private long _invalidations = 0;
+   private long _measured = 0;
+   private long _totalLatencyNanos = 0;
+   private long _maxLatencyNanos = 0;
+
+   private volatile boolean _running = true;
+
+   /**
+    * Creates a new listener
+    *
+    * @param connection a connection to the primary used only by this listener
+    * @param writerPid backend PID of the connection the client writes through
+    * @param cache the cache the notifications are applied to
+    */
+   public ChangeListener(Connection connection, int writerPid, ClientCache cache) {
+      super("change-listener");
+      setDaemon(true);
+      this._connection = connection;
+      this._writerPid = writerPid;
+      this._cache = cache;
+      cache.addListener(this);
+   }//end ChangeListener
+
+   /**
+    * LISTENs on a channel, once. Returns after the server registered it.
+    *
+    * @param channel the channel name
+    * @throws java.sql.SQLException when the LISTEN failed
+    */
+   public void listen(String channel) throws SQLException {
+      if (this._channels.contains(channel))
+         return;
+      synchronized (this._connection) {
+         Statement stmt = this._connection.createStatement ();
+         stmt.executeUpdate ("LISTEN " + channel);
+         stmt.close ();
+      }
+      this._channels.add(channel);
+   }//end listen
+
+   /**
+    * Records that the client just sent a write through its main connection.
+    */
+   public void writeSent() {
+      this._lastWriteNanos = System.nanoTime();
+   }
+
+   public void run() {
+      while (this._running) {
+         try {
+            PGNotification[] notifications;
+            synchronized (this._connection) {
+               Statement stmt = this._connection.createStatement ();
+               stmt.executeQuery ("SELECT 1");
+               stmt.close ();
+               notifications = ((PGConnection) this._connection).getNotifications();
+            }
+            if (notifications != null)
+               for (PGNotification notification : notifications)
+                  apply(notification);
+            Thread.sleep(POLL_MS);
+         } catch (InterruptedException e) {
+            return;
+         } catch (SQLException e) {
+            // keep serving; entries still expire by TTL
+            System.err.println ("Change listener: " + e.getMessage ());
+         }
+      }
+   }//end run
+
+   private void apply(PGNotification notification) {
+      this._cache.invalidate(notification.getName());
+      long now = System.nanoTime();
+      synchronized (this) {
+         this._invalidations++;
+         if (notification.getPID() == this._writerPid && this._lastWriteNanos != 0) {
+            long latency = now - this._lastWriteNanos;
+            this._measured++;
+            this._totalLatencyNanos += latency;
+            this._maxLatencyNanos = Math.max(this._maxLatencyNanos, latency);
+         }
+      }
+   }//end apply
+
+   /**
+    * @return a one line summary of the invalidations seen so far
+    */
+   public synchronized String stats() {
+      return String.format("%d invalidation(s), own writes: %d measured, avg %.1f ms, max %.1f ms",
+         this._invalidations, this._measured,
+         this._measured == 0 ? 0.0 : this._totalLatencyNanos / 1e6 / this._measured,
+         this._maxLatencyNanos / 1e6);
+   }//end stats
+
+   /**
+    * Stops the thread and closes the connection.
+    */
+   public void shutdown() {
+      this._running = false;
+      interrupt();
+      try {
+         synchronized (this._connection) {
+            this._connection.close ();
+         }
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }//end shutdown
+
+}//end ChangeListener
@@ -0,0 +1,152 @@
+/*
+ * Client side cache for the Amazon user interface
+ * ================================================
+ *
+ * Keeps query results that rarely change (store locations, product
+ * catalogs, user sessions) for a long time. Entries are keyed by the name of
+ * the NOTIFY channel that announces their change, see
+ * sql/src/create_triggers.sql, so a notification drops exactly the entry it
+ * is about.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A TTL cache of query results keyed by change notification channel.
+ */
+public class ClientCache {
+
+   // a cached result and the time it stops being served
+   private static class Entry {
+      List<List<String>> value;
+      long expiresAt;
+   }
+
+   // entries by channel name
+   private ConcurrentHashMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+
+   // bumped on every invalidation, so a result loaded before it is not kept
+   private ConcurrentHashMap<String, Long> _generations = new ConcurrentHashMap<String, Long>();
+
+   // bumped on every prefix invalidation; counts toward the generation of
+   // every key with that prefix, including keys still being loaded
+   private ConcurrentHashMap<String, Long> _prefixGenerations = new ConcurrentHashMap<String, Long>();
+
+   // how long an entry is kept when no change is announced
+   private long _ttlMs;
+
+   // one listener per database (shard) whose changes invalidate this cache
+   private List<ChangeListener> _listeners = new CopyOnWriteArrayList<ChangeListener>();
+
+   // result caches whose entries a change announced here also makes stale
+   private List<ResultCache> _resultCaches = new CopyOnWriteArrayList<ResultCache>();
+
+   /**
+    * Creates a new cache
+    *
+    * @param ttlMs the time to live of an entry in milliseconds
+    */
+   public ClientCache(long ttlMs) {
+      this._ttlMs = ttlMs;
+   }//end ClientCache
+
+   public void addListener(ChangeListener listener) {
+      this._listeners.add(listener);
+   }
+
+   public void addResultCache(ResultCache cache) {
+      this._resultCaches.add(cache);
+   }
+
+   public List<ChangeListener> listeners() {
+      return this._listeners;
+   }
+
+   /**
+    * @param key the channel name of the entry
+    * @return the cached result, or null when missing or expired
+    */
+   public List<List<String>> get(String key) {
+      Entry entry = this._entries.get(key);
+      if (entry == null)
+         return null;
+      if (System.currentTimeMillis() >= entry.expiresAt) {
+         this._entries.remove(key, entry);
+         return null;
+      }
+      return entry.value;
+   }//end get
+
+   /**
+    * Subscribes to the channel that invalidates an entry. Call this before
+    * running the query whose result is put, so that a change committed while
+    * the query runs is not missed.
+    *
+    * @param key the channel name of the entry
+    * @return the generation to pass to put
+    * @throws java.sql.SQLException when the LISTEN failed
+    */
+   public long subscribe(String key) throws SQLException {
+      for (ChangeListener listener : this._listeners)
+         listener.listen(key);
+      return generation(key);
+   }//end subscribe
+
+   /**
+    * Stores a result until it expires or its channel announces a change. The
+    * result is dropped if a change was announced since subscribe.
+    *
+    * @param key the channel name of the entry
+    * @param value the query result to keep
+    * @param generation the value subscribe returned before the query ran
+    */
+   public void put(String key, List<List<String>> value, long generation) {
+      Entry entry = new Entry();
+      entry.value = value;
+      entry.expiresAt = System.currentTimeMillis() + this._ttlMs;
+      this._entries.put(key, entry);
+      if (generation(key) != generation)
+         this._entries.remove(key, entry);
+   }//end put
+
+   /**
+    * Drops the entry announced on the given channel.
+    *
+    * @param key the channel name of the entry
+    */
+   public void invalidate(String key) {
+      this._generations.merge(key, 1L, Long::sum);
+      this._entries.remove(key);
+      for (ResultCache cache : this._resultCaches)
+         cache.invalidateChannel(key);
+   }//end invalidate
+
+   /**
+    * Drops every entry whose key starts with the given prefix, e.g. all
+    * product catalogs after this client updated Product. A result of such a
+    * key that is still being loaded is not kept either.
+    *
+    * @param prefix the channel name prefix
+    */
+   public void invalidatePrefix(String prefix) {
+      this._prefixGenerations.merge(prefix, 1L, Long::sum);
+      for (String key : this._entries.keySet())
+         if (key.startsWith(prefix))
+            invalidate(key);
+   }//end invalidatePrefix
+
+   private long generation(String key) {
+      long generation = this._generations.getOrDefault(key, 0L);
+      for (Map.Entry<String, Long> prefix : this._prefixGenerations.entrySet())
+         if (key.startsWith(prefix.getKey()))
+            generation += prefix.getValue();
+      return generation;
+   }
+
+}//end ClientCache
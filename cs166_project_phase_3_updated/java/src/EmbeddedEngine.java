@@ -0,0 +1,835 @@
+/*
+ * Embedded storage engine for the Amazon user interface
+ * ======================================================
+ *
+ * Loads the seven tables from data/*.csv into memory and answers the
+ * statements the menu operations send, without a PostgreSQL server. Used for
+ * offline demos and as a lower bound on latency for the JDBC path.
+ *
+ * Tables are stored column by column in primitive arrays: int for IDs and
+ * units, double for coordinates and prices, long (epoch seconds) for
+ * timestamps and dictionary codes for product names. Product is indexed on
+ * (storeID, productName), Orders on customerID and storeID, Store and
+ * ProductUpdates on managerID.
+ *
+ * Statements are recognized by shape: every query the menu issues has a
+ * pattern below. Anything else fails with an SQLException, as an unknown
+ * table would on the server. Values come back the way PostgreSQL prints
+ * them, except that char(n) columns are not space padded.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.IntPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process, column-oriented copy of the Amazon database.
+ */
+public class EmbeddedEngine {
+
+   // a growable int column
+   static class IntColumn {
+      int[] values = new int[16];
+      int size = 0;
+
+      void add(int value) {
+         if (this.size == this.values.length)
+            this.values = Arrays.copyOf(this.values, this.size * 2);
+         this.values[this.size++] = value;
+      }
+
+      int get(int row) {
+         return this.values[row];
+      }
+   }//end IntColumn
+
+   // a growable double column
+   static class DoubleColumn {
+      double[] values = new double[16];
+      int size = 0;
+
+      void add(double value) {
+         if (this.size == this.values.length)
+            this.values = Arrays.copyOf(this.values, this.size * 2);
+         this.values[this.size++] = value;
+      }
+
+      double get(int row) {
+         return this.values[row];
+      }
+   }//end DoubleColumn
+
+   // a growable long column
+   static class LongColumn {
+      long[] values = new long[16];
+      int size = 0;
+
+      void add(long value) {
+         if (this.size == this.values.length)
+            this.values = Arrays.copyOf(this.values, this.size * 2);
+         this.values[this.size++] = value;
+      }
+
+      long get(int row) {
+         return this.values[row];
+      }
+   }//end LongColumn
+
+   // a statement shape and what it does; returns the column names followed by the rows
+   interface Handler {
+      List<List<String>> run(Matcher m) throws SQLException;
+   }
+
+   private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+   private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("M/d/yyyy");
+
+   private ProductNameDictionary _productNames = ProductNameDictionary.SHARED;
+
+   // Users
+   private IntColumn _userID = new IntColumn();
+   private List<String> _userName = new ArrayList<String>();
+   private List<String> _userPassword = new ArrayList<String>();
+   private DoubleColumn _userLatitude = new DoubleColumn();
+   private DoubleColumn _userLongitude = new DoubleColumn();
+   private List<String> _userType = new ArrayList<String>();
+   private HashMap<Integer, Integer> _userByID = new HashMap<Integer, Integer>();
+
+   // Store
+   private IntColumn _storeID = new IntColumn();
+   private DoubleColumn _storeLatitude = new DoubleColumn();
+   private DoubleColumn _storeLongitude = new DoubleColumn();
+   private IntColumn _storeManagerID = new IntColumn();
+   private IntColumn _storeDateEstablished = new IntColumn();
+   private HashMap<Integer, IntColumn> _storesByManager = new HashMap<Integer, IntColumn>();
+
+   // Product
+   private IntColumn _productStoreID = new IntColumn();
+   private IntColumn _productName = new IntColumn();
+   private IntColumn _productUnits = new IntColumn();
+   private DoubleColumn _productPrice = new DoubleColumn();
+   private HashMap<Long, Integer> _productByKey = new HashMap<Long, Integer>();
+   private HashMap<Integer, IntColumn> _productsByStore = new HashMap<Integer, IntColumn>();
+
+   // Warehouse
+   private IntColumn _warehouseID = new IntColumn();
+   private IntColumn _warehouseArea = new IntColumn();
+   private DoubleColumn _warehouseLatitude = new DoubleColumn();
+   private DoubleColumn _warehouseLongitude = new DoubleColumn();
+
+   // Orders
+   private IntColumn _orderNumber = new IntColumn();
+   private IntColumn _orderCustomerID = new IntColumn();
+   private IntColumn _orderStoreID = new IntColumn();
+   private IntColumn _orderProductName = new IntColumn();
+   private IntColumn _orderUnits = new IntColumn();
+   private LongColumn _orderTime = new LongColumn();
+   private HashMap<Integer, IntColumn> _ordersByCustomer = new HashMap<Integer, IntColumn>();
+   private HashMap<Integer, IntColumn> _ordersByStore = new HashMap<Integer, IntColumn>();
+
+   // ProductUpdates
+   private IntColumn _updateNumber = new IntColumn();
+   private IntColumn _updateManagerID = new IntColumn();
+   private IntColumn _updateStoreID = new IntColumn();
+   private IntColumn _updateProductName = new IntColumn();
+   private LongColumn _updatedOn = new LongColumn();
+   private HashMap<Integer, IntColumn> _updatesByManager = new HashMap<Integer, IntColumn>();
+
+   // ProductSupplyRequests
+   private IntColumn _requestNumber = new IntColumn();
+   private IntColumn _requestManagerID = new IntColumn();
+   private IntColumn _requestWarehouseID = new IntColumn();
+   private IntColumn _requestStoreID = new IntColumn();
+   private IntColumn _requestProductName = new IntColumn();
+   private IntColumn _requestUnits = new IntColumn();
+
+   // sequences of the serial columns: last value handed out
+   private HashMap<String, Integer> _sequences = new HashMap<String, Integer>();
+   private HashMap<String, Integer> _currval = new HashMap<String, Integer>();
+
+   // statement shapes, tried in order
+   private List<Pattern> _patterns = new ArrayList<Pattern>();
+   private List<Handler> _handlers = new ArrayList<Handler>();
+
+   /**
+    * Loads the tables from the CSV files of the given directory
+    *
+    * @param dataDir the directory holding users.csv, stores.csv, ...
+    * @throws java.io.IOException when a file could not be read
+    */
+   public EmbeddedEngine(String dataDir) throws IOException {
+      for (String[] f : readCsv(dataDir, "users.csv"))
+         addUser(Integer.parseInt(f[0]), f[1], f[2], Double.parseDouble(f[3]), Double.parseDouble(f[4]), f[5]);
+      for (String[] f : readCsv(dataDir, "stores.csv"))
+         addStore(Integer.parseInt(f[0]), Double.parseDouble(f[1]), Double.parseDouble(f[2]), Integer.parseInt(f[3]),
+            f[4].isEmpty() ? 0 : (int) LocalDate.parse(f[4], DATE).toEpochDay());
+      for (String[] f : readCsv(dataDir, "products.csv"))
+         addProduct(Integer.parseInt(f[0]), this._productNames.encode(f[1]), Integer.parseInt(f[2]), Double.parseDouble(f[3]));
+      for (String[] f : readCsv(dataDir, "warehouse.csv")) {
+         this._warehouseID.add(Integer.parseInt(f[0]));
+         this._warehouseArea.add(Integer.parseInt(f[1]));
+         this._warehouseLatitude.add(Double.parseDouble(f[2]));
+         this._warehouseLongitude.add(Double.parseDouble(f[3]));
+      }
+      for (String[] f : readCsv(dataDir, "orders.csv"))
+         addOrder(Integer.parseInt(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]), this._productNames.encode(f[3]),
+            Integer.parseInt(f[4]), parseTimestamp(f[5]));
+      for (String[] f : readCsv(dataDir, "productUpdates.csv"))
+         addUpdate(Integer.parseInt(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]), this._productNames.encode(f[3]), parseTimestamp(f[4]));
+      for (String[] f : readCsv(dataDir, "productSupplyRequests.csv"))
+         addRequest(Integer.parseInt(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]), Integer.parseInt(f[3]),
+            this._productNames.encode(f[4]), Integer.parseInt(f[5]));
+
+      // load_data.sql restarts the sequences after the loaded keys
+      this._sequences.put("users_userid_seq", max(this._userID));
+      this._sequences.put("orders_ordernumber_seq", max(this._orderNumber));
+      this._sequences.put("productupdates_updatenumber_seq", max(this._updateNumber));
+      this._sequences.put("productsupplyrequests_requestnumber_seq", max(this._requestNumber));
+
+      registerQueries();
+      registerUpdates();
+   }//end EmbeddedEngine
+
+   public ProductNameDictionary productNames() {
+      return this._productNames;
+   }
+
+   /**
+    * Answers a query the way executeQuery would.
+    *
+    * @param sql the query
+    * @return the column names followed by the rows
+    * @throws java.sql.SQLException when the query has an unknown shape
+    */
+   public synchronized List<List<String>> query(String sql) throws SQLException {
+      String statement = sql.trim().replaceAll("\\s+", " ").replaceAll(";$", "");
+      for (int i = 0; i < this._patterns.size(); i++) {
+         Matcher m = this._patterns.get(i).matcher(statement);
+         if (m.matches())
+            return this._handlers.get(i).run(m);
+      }
+      throw new SQLException("Unsupported statement for the embedded engine: " + statement);
+   }//end query
+
+   /**
+    * Applies an INSERT or UPDATE.
+    *
+    * @param sql the statement, without a RETURNING clause
+    * @return the generated key of a single row insert, otherwise the number
+    *         of rows written
+    * @throws java.sql.SQLException when the statement has an unknown shape
+    */
+   public synchronized int update(String sql) throws SQLException {
+      List<List<String>> result = query(sql);
+      return Integer.parseInt(result.get(1).get(0));
+   }//end update
+
+   private void on(String regex, Handler handler) {
+      this._patterns.add(Pattern.compile(regex, Pattern.CASE_INSENSITIVE));
+      this._handlers.add(handler);
+   }
+
+   private void registerQueries() {
+      final String id = "'?(-?\\d+)'?";
+      final String text = "'([^']*)'";
+
+      on("SELECT \\* FROM Users WHERE name = " + text + " AND password = " + text, m -> {
+         List<List<String>> result = header("userid", "name", "password", "latitude", "longitude", "type");
+         for (int row = 0; row < this._userID.size; row++)
+            if (this._userName.get(row).equals(m.group(1)) && this._userPassword.get(row).equals(m.group(2)))
+               result.add(userRow(row));
+         return result;
+      });
+      on("SELECT UserID FROM Users WHERE name = " + text + " AND password = " + text, m -> {
+         List<List<String>> result = header("userid");
+         for (int row = 0; row < this._userID.size; row++)
+            if (this._userName.get(row).equals(m.group(1)) && this._userPassword.get(row).equals(m.group(2)))
+               result.add(row(this._userID.get(row)));
+         return result;
+      });
+      on("SELECT latitude, longitude, type FROM Users WHERE userID = " + id, m -> {
+         List<List<String>> result = header("latitude", "longitude", "type");
+         Integer row = this._userByID.get(Integer.parseInt(m.group(1)));
+         if (row != null)
+            result.add(row(coordinate(this._userLatitude.get(row)), coordinate(this._userLongitude.get(row)), this._userType.get(row)));
+         return result;
+      });
+      on("SELECT \\* FROM Users WHERE userID = " + id, m -> {
+         List<List<String>> result = header("userid", "name", "password", "latitude", "longitude", "type");
+         Integer row = this._userByID.get(Integer.parseInt(m.group(1)));
+         if (row != null)
+            result.add(userRow(row));
+         return result;
+      });
+      on("SELECT userID, name FROM Users WHERE userID = (\\d+(?: OR userID = \\d+)*)", m -> {
+         List<List<String>> result = header("userid", "name");
+         for (String userID : m.group(1).split(" OR userID = ")) {
+            Integer row = this._userByID.get(Integer.parseInt(userID));
+            if (row != null)
+               result.add(row(this._userID.get(row), this._userName.get(row)));
+         }
+         return result;
+      });
+      on("SELECT userID FROM Users WHERE type = " + text, m -> {
+         List<List<String>> result = header("userid");
+         for (int row = 0; row < this._userID.size; row++)
+            if (this._userType.get(row).equals(m.group(1)))
+               result.add(row(this._userID.get(row)));
+         return result;
+      });
+      on("SELECT \\* FROM Users", m -> {
+         List<List<String>> result = header("userid", "name", "password", "latitude", "longitude", "type");
+         for (int row = 0; row < this._userID.size; row++)
+            result.add(userRow(row));
+         return result;
+      });
+
+      on("SELECT storeID, latitude, longitude FROM Store(?: ORDER BY storeID)?", m -> {
+         List<List<String>> result = header("storeid", "latitude", "longitude");
+         for (int row : sortedRows(this._storeID))
+            result.add(row(this._storeID.get(row), coordinate(this._storeLatitude.get(row)), coordinate(this._storeLongitude.get(row))));
+         return result;
+      });
+      on("SELECT storeID FROM Store WHERE managerID = " + id, m -> {
+         List<List<String>> result = header("storeid");
+         IntColumn rows = this._storesByManager.get(Integer.parseInt(m.group(1)));
+         for (int i = 0; rows != null && i < rows.size; i++)
+            result.add(row(this._storeID.get(rows.get(i))));
+         return result;
+      });
+      on("SELECT storeID FROM Store", m -> {
+         List<List<String>> result = header("storeid");
+         for (int row = 0; row < this._storeID.size; row++)
+            result.add(row(this._storeID.get(row)));
+         return result;
+      });
+
+      on("SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = " + id, m -> {
+         List<List<String>> result = header("productname", "numberofunits", "priceperunit");
+         IntColumn rows = this._productsByStore.get(Integer.parseInt(m.group(1)));
+         for (int i = 0; rows != null && i < rows.size; i++) {
+            int row = rows.get(i);
+            result.add(row(this._productNames.decode(this._productName.get(row)), this._productUnits.get(row), price(this._productPrice.get(row))));
+         }
+         return result;
+      });
+      on("SELECT productName FROM Product WHERE storeID = " + id, m -> {
+         List<List<String>> result = header("productname");
+         IntColumn rows = this._productsByStore.get(Integer.parseInt(m.group(1)));
+         for (int i = 0; rows != null && i < rows.size; i++)
+            result.add(row(this._productNames.decode(this._productName.get(rows.get(i)))));
+         return result;
+      });
+      on("SELECT \\* FROM Product WHERE storeID = " + id + " AND productName = " + text, m -> {
+         List<List<String>> result = header("storeid", "productname", "numberofunits", "priceperunit");
+         int row = productRow(Integer.parseInt(m.group(1)), m.group(2));
+         if (row >= 0)
+            result.add(productRow(row));
+         return result;
+      });
+      on("SELECT storeID, productName FROM Product", m -> {
+         List<List<String>> result = header("storeid", "productname");
+         for (int row = 0; row < this._productStoreID.size; row++)
+            result.add(row(this._productStoreID.get(row), this._productNames.decode(this._productName.get(row))));
+         return result;
+      });
+      on("SELECT \\* FROM Product", m -> {
+         List<List<String>> result = header("storeid", "productname", "numberofunits", "priceperunit");
+         for (int row = 0; row < this._productStoreID.size; row++)
+            result.add(productRow(row));
+         return result;
+      });
+
+      on("SELECT WarehouseID FROM Warehouse WHERE WarehouseID = " + id, m -> {
+         List<List<String>> result = header("warehouseid");
+         int warehouseID = Integer.parseInt(m.group(1));
+         for (int row = 0; row < this._warehouseID.size; row++)
+            if (this._warehouseID.get(row) == warehouseID)
+               result.add(row(warehouseID));
+         return result;
+      });
+      on("SELECT WarehouseID FROM Warehouse", m -> {
+         List<List<String>> result = header("warehouseid");
+         for (int row = 0; row < this._warehouseID.size; row++)
+            result.add(row(this._warehouseID.get(row)));
+         return result;
+      });
+
+      on("SELECT storeID, productName, unitsOrdered, orderTime FROM Orders WHERE customerID = " + id + " ORDER BY orderTime DESC LIMIT (\\d+)", m -> {
+         List<List<String>> result = header("storeid", "productname", "unitsordered", "ordertime");
+         for (int row : latest(this._ordersByCustomer.get(Integer.parseInt(m.group(1))), this._orderTime, Integer.parseInt(m.group(2))))
+            result.add(row(this._orderStoreID.get(row), this._productNames.decode(this._orderProductName.get(row)),
+               this._orderUnits.get(row), timestamp(this._orderTime.get(row))));
+         return result;
+      });
+      on("SELECT productName, COUNT\\(\\*\\) as orderCount FROM Orders WHERE storeID = " + id + " GROUP BY productName ORDER BY orderCount DESC LIMIT (\\d+)", m -> {
+         List<List<String>> result = header("productname", "ordercount");
+         HashMap<Integer, Integer> counts = countBy(this._ordersByStore.get(Integer.parseInt(m.group(1))), this._orderProductName);
+         for (int code : topCounts(counts, Integer.parseInt(m.group(2))))
+            result.add(row(this._productNames.decode(code), counts.get(code)));
+         return result;
+      });
+      on("SELECT customerID ?, COUNT\\(\\*\\) as customerCount FROM Orders WHERE storeID = " + id + " GROUP BY customerID ORDER BY customerCount DESC LIMIT (\\d+)", m -> {
+         List<List<String>> result = header("customerid", "customercount");
+         HashMap<Integer, Integer> counts = countBy(this._ordersByStore.get(Integer.parseInt(m.group(1))), this._orderCustomerID);
+         for (int customerID : topCounts(counts, Integer.parseInt(m.group(2))))
+            result.add(row(customerID, counts.get(customerID)));
+         return result;
+      });
+      on("SELECT O.orderNumber, U.name, O.storeID, O.productName, O.orderTime FROM Orders O, Users U WHERE O.storeID = " + id + " AND O.customerID = U.userID", m -> {
+         List<List<String>> result = header("ordernumber", "name", "storeid", "productname", "ordertime");
+         IntColumn rows = this._ordersByStore.get(Integer.parseInt(m.group(1)));
+         for (int i = 0; rows != null && i < rows.size; i++) {
+            int row = rows.get(i);
+            Integer user = this._userByID.get(this._orderCustomerID.get(row));
+            if (user != null)
+               result.add(row(this._orderNumber.get(row), this._userName.get(user), this._orderStoreID.get(row),
+                  this._productNames.decode(this._orderProductName.get(row)), timestamp(this._orderTime.get(row))));
+         }
+         return result;
+      });
+      on("SELECT MIN\\(orderNumber\\), MAX\\(orderNumber\\) FROM Orders", m -> {
+         List<List<String>> result = header("min", "max");
+         if (this._orderNumber.size == 0)
+            result.add(Arrays.asList((String) null, null));
+         else
+            result.add(row(min(this._orderNumber), max(this._orderNumber)));
+         return result;
+      });
+      on("SELECT O.orderNumber, O.storeID, O.productName, O.unitsOrdered, O.orderTime, P.pricePerUnit FROM Orders O, Product P WHERE O.storeID = P.storeID AND O.productName = P.productName AND O.orderNumber BETWEEN " + id + " AND " + id, m -> {
+         int from = Integer.parseInt(m.group(1)), to = Integer.parseInt(m.group(2));
+         return pricedOrders(orderNumber -> orderNumber >= from && orderNumber <= to);
+      });
+
+      on("SELECT updateNumber, storeID, productName, updatedOn FROM ProductUpdates WHERE managerID = " + id + " ORDER BY updatedOn DESC LIMIT (\\d+)", m -> {
+         List<List<String>> result = header("updatenumber", "storeid", "productname", "updatedon");
+         for (int row : latest(this._updatesByManager.get(Integer.parseInt(m.group(1))), this._updatedOn, Integer.parseInt(m.group(2))))
+            result.add(row(this._updateNumber.get(row), this._updateStoreID.get(row),
+               this._productNames.decode(this._updateProductName.get(row)), timestamp(this._updatedOn.get(row))));
+         return result;
+      });
+
+      on("SELECT requestNumber, managerID, warehouseID, storeID, productName, unitsRequested FROM ProductSupplyRequests WHERE storeID = " + id, m -> {
+         List<List<String>> result = header("requestnumber", "managerid", "warehouseid", "storeid", "productname", "unitsrequested");
+         int storeID = Integer.parseInt(m.group(1));
+         for (int row = 0; row < this._requestNumber.size; row++)
+            if (this._requestStoreID.get(row) == storeID)
+               result.add(row(this._requestNumber.get(row), this._requestManagerID.get(row), this._requestWarehouseID.get(row),
+                  storeID, this._productNames.decode(this._requestProductName.get(row)), this._requestUnits.get(row)));
+         return result;
+      });
+
+      on("SELECT nextval\\('(\\w+)'\\)(?: FROM generate_series\\(1, (\\d+)\\))?", m -> {
+         List<List<String>> result = header("nextval");
+         int values = m.group(2) == null ? 1 : Integer.parseInt(m.group(2));
+         for (int i = 0; i < values; i++)
+            result.add(row(nextval(m.group(1))));
+         return result;
+      });
+      on("SELECT currval\\('(\\w+)'\\)", m -> {
+         Integer value = this._currval.get(m.group(1).toLowerCase());
+         if (value == null)
+            throw new SQLException("currval of sequence \"" + m.group(1) + "\" is not yet defined in this session");
+         List<List<String>> result = header("currval");
+         result.add(row(value));
+         return result;
+      });
+   }//end registerQueries
+
+   private void registerUpdates() {
+      final String id = "'?(-?\\d+)'?";
+      final String text = "'([^']*)'";
+      final String number = "(-?[\\d.]+)";
+      final String now = "CAST\\(CURRENT_TIMESTAMP AS TIMESTAMP\\(0\\)\\)";
+
+      on("INSERT INTO Users \\(name, password, latitude, longitude, type\\) VALUES \\(" + text + ", ?" + text + ", " + number + ", " + number + ", ?" + text + "\\)", m -> {
+         int userID = nextval("users_userid_seq");
+         addUser(userID, m.group(1), m.group(2), Double.parseDouble(m.group(3)), Double.parseDouble(m.group(4)), m.group(5));
+         return written(userID);
+      });
+      on("UPDATE Users SET name = " + text + ", password = " + text + ", latitude = " + number + ", longitude = " + number + ", type = " + text + " WHERE userID = " + id, m -> {
+         Integer row = this._userByID.get(Integer.parseInt(m.group(6)));
+         if (row == null)
+            return written(0);
+         this._userName.set(row, m.group(1));
+         this._userPassword.set(row, m.group(2));
+         this._userLatitude.values[row] = Double.parseDouble(m.group(3));
+         this._userLongitude.values[row] = Double.parseDouble(m.group(4));
+         this._userType.set(row, m.group(5));
+         return written(1);
+      });
+
+      on("UPDATE Product SET numberOfUnits = numberOfUnits ([-+]) (\\d+) WHERE storeID = " + id + " AND productName = " + text, m -> {
+         int row = productRow(Integer.parseInt(m.group(3)), m.group(4));
+         if (row < 0)
+            return written(0);
+         int units = Integer.parseInt(m.group(2));
+         this._productUnits.values[row] += m.group(1).equals("-") ? -units : units;
+         return written(1);
+      });
+      final Pattern unitsCase = Pattern.compile(" WHEN " + text + " THEN (\\d+)", Pattern.CASE_INSENSITIVE);
+      on("UPDATE Product SET numberOfUnits = numberOfUnits - CASE productName((?: WHEN '[^']*' THEN \\d+)+) END WHERE storeID = " + id + " AND productName IN \\(.*\\)", m -> {
+         int written = 0;
+         for (Matcher product = unitsCase.matcher(m.group(1)); product.find(); ) {
+            int row = productRow(Integer.parseInt(m.group(2)), product.group(1));
+            if (row >= 0) {
+               this._productUnits.values[row] -= Integer.parseInt(product.group(2));
+               written++;
+            }
+         }
+         return written(written);
+      });
+      on("UPDATE Product SET numberOfUnits = (-?\\d+) WHERE storeID = " + id + " AND productName = " + text, m -> {
+         int row = productRow(Integer.parseInt(m.group(2)), m.group(3));
+         if (row < 0)
+            return written(0);
+         this._productUnits.values[row] = Integer.parseInt(m.group(1));
+         return written(1);
+      });
+      on("UPDATE Product SET pricePerUnit = " + number + " WHERE storeID = " + id + " AND productName = " + text, m -> {
+         int row = productRow(Integer.parseInt(m.group(2)), m.group(3));
+         if (row < 0)
+            return written(0);
+         this._productPrice.values[row] = Double.parseDouble(m.group(1));
+         return written(1);
+      });
+      on("UPDATE Product SET numberOfUnits = (-?\\d+), pricePerUnit = " + number + " WHERE storeID = " + id + " AND productName = " + text, m -> {
+         int row = productRow(Integer.parseInt(m.group(3)), m.group(4));
+         if (row < 0)
+            return written(0);
+         this._productUnits.values[row] = Integer.parseInt(m.group(1));
+         this._productPrice.values[row] = Double.parseDouble(m.group(2));
+         return written(1);
+      });
+
+      on("INSERT INTO Orders \\(customerID, storeID, productName, unitsOrdered, orderTime\\) VALUES \\((\\d+), (\\d+), " + text + ", (\\d+), " + now + "\\)", m -> {
+         int storeID = Integer.parseInt(m.group(2));
+         int productName = checkProduct(storeID, m.group(3));
+         int orderNumber = nextval("orders_ordernumber_seq");
+         addOrder(orderNumber, Integer.parseInt(m.group(1)), storeID, productName, Integer.parseInt(m.group(4)), now());
+         return written(orderNumber);
+      });
+      final Pattern orderValues = Pattern.compile("\\((\\d+), (\\d+), (\\d+), " + text + ", (\\d+), " + now + "\\)", Pattern.CASE_INSENSITIVE);
+      on("INSERT INTO Orders \\(orderNumber, customerID, storeID, productName, unitsOrdered, orderTime\\) VALUES (.*)", m -> {
+         // check every row first, so a bad row leaves the table as it was
+         List<int[]> rows = new ArrayList<int[]>();
+         Matcher values = orderValues.matcher(m.group(1));
+         while (values.find()) {
+            int storeID = Integer.parseInt(values.group(3));
+            rows.add(new int[] {Integer.parseInt(values.group(1)), Integer.parseInt(values.group(2)), storeID,
+               checkProduct(storeID, values.group(4)), Integer.parseInt(values.group(5))});
+         }
+         long time = now();
+         for (int[] row : rows)
+            addOrder(row[0], row[1], row[2], row[3], row[4], time);
+         return written(rows.size());
+      });
+      on("INSERT INTO ProductUpdates \\(managerID, storeID, productName, updatedOn\\) VALUES \\((\\d+), (\\d+), " + text + ", " + now + "\\)", m -> {
+         int storeID = Integer.parseInt(m.group(2));
+         int productName = checkProduct(storeID, m.group(3));
+         int updateNumber = nextval("productupdates_updatenumber_seq");
+         addUpdate(updateNumber, Integer.parseInt(m.group(1)), storeID, productName, now());
+         return written(updateNumber);
+      });
+      on("INSERT INTO ProductSupplyRequests \\(managerID, warehouseID, storeID, productName, unitsRequested\\) VALUES \\((\\d+), (\\d+), (\\d+), " + text + ", (\\d+)\\)", m -> {
+         int storeID = Integer.parseInt(m.group(3));
+         int productName = checkProduct(storeID, m.group(4));
+         int requestNumber = nextval("productsupplyrequests_requestnumber_seq");
+         addRequest(requestNumber, Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), storeID, productName, Integer.parseInt(m.group(5)));
+         return written(requestNumber);
+      });
+   }//end registerUpdates
+
+   private void addUser(int userID, String name, String password, double latitude, double longitude, String type) {
+      this._userByID.put(userID, this._userID.size);
+      this._userID.add(userID);
+      this._userName.add(name);
+      this._userPassword.add(password);
+      this._userLatitude.add(latitude);
+      this._userLongitude.add(longitude);
+      this._userType.add(type);
+   }
+
+   private void addStore(int storeID, double latitude, double longitude, int managerID, int dateEstablished) {
+      index(this._storesByManager, managerID, this._storeID.size);
+      this._storeID.add(storeID);
+      this._storeLatitude.add(latitude);
+      this._storeLongitude.add(longitude);
+      this._storeManagerID.add(managerID);
+      this._storeDateEstablished.add(dateEstablished);
+   }
+
+   private void addProduct(int storeID, int productName, int units, double price) {
+      this._productByKey.put(productKey(storeID, productName), this._productStoreID.size);
+      index(this._productsByStore, storeID, this._productStoreID.size);
+      this._productStoreID.add(storeID);
+      this._productName.add(productName);
+      this._productUnits.add(units);
+      this._productPrice.add(price);
+   }
+
+   private void addOrder(int orderNumber, int customerID, int storeID, int productName, int units, long time) {
+      index(this._ordersByCustomer, customerID, this._orderNumber.size);
+      index(this._ordersByStore, storeID, this._orderNumber.size);
+      this._orderNumber.add(orderNumber);
+      this._orderCustomerID.add(customerID);
+      this._orderStoreID.add(storeID);
+      this._orderProductName.add(productName);
+      this._orderUnits.add(units);
+      this._orderTime.add(time);
+   }
+
+   private void addUpdate(int updateNumber, int managerID, int storeID, int productName, long time) {
+      index(this._updatesByManager, managerID, this._updateNumber.size);
+      this._updateNumber.add(updateNumber);
+      this._updateManagerID.add(managerID);
+      this._updateStoreID.add(storeID);
+      this._updateProductName.add(productName);
+      this._updatedOn.add(time);
+   }
+
+   private void addRequest(int requestNumber, int managerID, int warehouseID, int storeID, int productName, int units) {
+      this._requestNumber.add(requestNumber);
+      this._requestManagerID.add(managerID);
+      this._requestWarehouseID.add(warehouseID);
+      this._requestStoreID.add(storeID);
+      this._requestProductName.add(productName);
+      this._requestUnits.add(units);
+   }
+
+   private static void index(HashMap<Integer, IntColumn> index, int key, int row) {
+      IntColumn rows = index.get(key);
+      if (rows == null) {
+         rows = new IntColumn();
+         index.put(key, rows);
+      }
+      rows.add(row);
+   }
+
+   private static long productKey(int storeID, int productName) {
+      return ((long) storeID << 32) | (productName & 0xffffffffL);
+   }
+
+   // row of a product in the (storeID, productName) index, or -1
+   private int productRow(int storeID, String productName) {
+      int code = this._productNames.lookup(productName);
+      if (code < 0)
+         return -1;
+      Integer row = this._productByKey.get(productKey(storeID, code));
+      return row == null ? -1 : row;
+   }
+
+   // the foreign key check of Orders, ProductUpdates and ProductSupplyRequests
+   private int checkProduct(int storeID, String productName) throws SQLException {
+      int row = productRow(storeID, productName);
+      if (row < 0)
+         throw new SQLException("insert or update violates foreign key constraint: (storeid, productname)=("
+            + storeID + ", " + productName + ") is not present in table \"product\"");
+      return this._productName.get(row);
+   }
+
+   private int nextval(String sequence) {
+      sequence = sequence.toLowerCase();
+      int value = this._sequences.get(sequence) + 1;
+      this._sequences.put(sequence, value);
+      this._currval.put(sequence, value);
+      return value;
+   }
+
+   // the newest rows by time, newest first
+   private static List<Integer> latest(IntColumn rows, LongColumn time, int limit) {
+      List<Integer> sorted = new ArrayList<Integer>();
+      for (int i = 0; rows != null && i < rows.size; i++)
+         sorted.add(rows.get(i));
+      sorted.sort((a, b) -> Long.compare(time.get(b), time.get(a)));
+      return sorted.subList(0, Math.min(limit, sorted.size()));
+   }
+
+   private static HashMap<Integer, Integer> countBy(IntColumn rows, IntColumn column) {
+      HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+      for (int i = 0; rows != null && i < rows.size; i++)
+         counts.merge(column.get(rows.get(i)), 1, Integer::sum);
+      return counts;
+   }
+
+   private static List<Integer> topCounts(HashMap<Integer, Integer> counts, int limit) {
+      List<Integer> keys = new ArrayList<Integer>(counts.keySet());
+      keys.sort((a, b) -> counts.get(b) - counts.get(a));
+      return keys.subList(0, Math.min(limit, keys.size()));
+   }
+
+   private static List<Integer> sortedRows(IntColumn key) {
+      List<Integer> rows = new ArrayList<Integer>();
+      for (int row = 0; row < key.size; row++)
+         rows.add(row);
+      rows.sort((a, b) -> Integer.compare(key.get(a), key.get(b)));
+      return rows;
+   }
+
+   private static int max(IntColumn column) {
+      int max = 0;
+      for (int row = 0; row < column.size; row++)
+         max = Math.max(max, column.get(row));
+      return max;
+   }
+
+   private static int min(IntColumn column) {
+      int min = Integer.MAX_VALUE;
+      for (int row = 0; row < column.size; row++)
+         min = Math.min(min, column.get(row));
+      return min;
+   }
+
+   // The orders whose number matches, joined with the price of their product.
+   private List<List<String>> pricedOrders(IntPredicate orderNumbers) {
+      List<List<String>> result = header("ordernumber", "storeid", "productname", "unitsordered", "ordertime", "priceperunit");
+      for (int row = 0; row < this._orderNumber.size; row++) {
+         if (!orderNumbers.test(this._orderNumber.get(row)))
+            continue;
+         Integer product = this._productByKey.get(productKey(this._orderStoreID.get(row), this._orderProductName.get(row)));
+         if (product != null)
+            result.add(row(this._orderNumber.get(row), this._orderStoreID.get(row), this._productNames.decode(this._orderProductName.get(row)),
+               this._orderUnits.get(row), timestamp(this._orderTime.get(row)), price(this._productPrice.get(product))));
+      }
+      return result;
+   }
+
+   private List<String> userRow(int row) {
+      return row(this._userID.get(row), this._userName.get(row), this._userPassword.get(row),
+         coordinate(this._userLatitude.get(row)), coordinate(this._userLongitude.get(row)), this._userType.get(row));
+   }
+
+   private List<String> productRow(int row) {
+      return row(this._productStoreID.get(row), this._productNames.decode(this._productName.get(row)),
+         this._productUnits.get(row), price(this._productPrice.get(row)));
+   }
+
+   private static List<List<String>> header(String... columns) {
+      List<List<String>> result = new ArrayList<List<String>>();
+      result.add(Arrays.asList(columns));
+      return result;
+   }
+
+   private static List<String> row(Object... values) {
+      List<String> row = new ArrayList<String>(values.length);
+      for (Object value : values)
+         row.add(String.valueOf(value));
+      return row;
+   }
+
+   private static List<List<String>> written(int value) {
+      List<List<String>> result = header("count");
+      result.add(row(value));
+      return result;
+   }
+
+   // decimal(8,6) and decimal(9,6) print with six decimals
+   private static String coordinate(double value) {
+      return String.format("%.6f", value);
+   }
+
+   // float prints without a trailing .0
+   private static String price(double value) {
+      return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+   }
+
+   private static long parseTimestamp(String value) {
+      return LocalDateTime.parse(value, TIMESTAMP).toEpochSecond(ZoneOffset.UTC);
+   }
+
+   private static String timestamp(long seconds) {
+      return LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC).format(TIMESTAMP);
+   }
+
+   // CURRENT_TIMESTAMP truncated to seconds, in local time like the server's
+   private static long now() {
+      return LocalDateTime.now().withNano(0).toEpochSecond(ZoneOffset.UTC);
+   }
+
+   // Reads a CSV file with a header line and no quoted fields.
+   private static List<String[]> readCsv(String dataDir, String name) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(new File(dataDir, name)));
+      try {
+         String line = reader.readLine();
+         while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty())
+               rows.add(line.split(",", -1));
+         }
+      } finally {
+         reader.close();
+      }
+      return rows;
+   }
+
+   /**
+    * Times every menu request against the embedded engine and, when database
+    * arguments are given, against PostgreSQL, and prints the average latency
+    * of each. The embedded numbers are a lower bound for the JDBC path: the
+    * same request work without the network, parser and executor.
+    *
+    * @param args <data dir> [<dbname> <port> <user>] [<iterations>]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length != 1 && args.length != 2 && args.length != 4 && args.length != 5) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " + EmbeddedEngine.class.getName () +
+            " <data dir> [<dbname> <port> <user>] [<iterations>]");
+         return;
+      }//end if
+      int iterations = args.length == 2 || args.length == 5 ? Integer.parseInt(args[args.length - 1]) : 1000;
+
+      Amazon embedded = new Amazon(new EmbeddedEngine(args[0]));
+      embedded.setQuiet(true);
+      Amazon jdbc = null;
+      if (args.length >= 4) {
+         Class.forName ("org.postgresql.Driver");
+         jdbc = new Amazon(args[1], args[2], args[3], "");
+         jdbc.setQuiet(true);
+      }
+
+      AmazonRequest[] requests = {
+         new AmazonRequest.ViewStores(2),
+         new AmazonRequest.ViewProducts(1),
+         new AmazonRequest.ViewRecentOrders(2),
+         new AmazonRequest.ViewRecentUpdates(25),
+         new AmazonRequest.ViewPopularProducts(1),
+         new AmazonRequest.ViewPopularCustomers(1),
+         new AmazonRequest.ViewAllOrders(1),
+      };
+      System.out.println("request\tembedded us\tjdbc us");
+      for (AmazonRequest request : requests) {
+         double embeddedMicros = time(embedded, request, iterations);
+         String jdbcMicros = jdbc == null ? "-" : String.format("%.1f", time(jdbc, request, iterations));
+         System.out.printf("%s\t%.1f\t%s%n", request.getClass().getSimpleName(), embeddedMicros, jdbcMicros);
+      }
+      if (jdbc != null)
+         jdbc.cleanup();
+   }//end main
+
+   // average microseconds per run, after as many warm up runs
+   private static double time(Amazon esql, AmazonRequest request, int iterations) throws SQLException {
+      for (int i = 0; i < iterations; i++)
+         request.execute(esql);
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+         request.execute(esql);
+      return (System.nanoTime() - start) / 1e3 / iterations;
+   }
+
+}//end EmbeddedEngine
@@ -0,0 +1,156 @@
+/*
+ * Client side key allocation for the Amazon user interface
+ * =========================================================
+ *
+ * Reserves a block of values from a sequence, e.g. orders_orderNumber_seq,
+ * in one round trip and hands them out locally, so batch inserts can name
+ * their keys up front instead of reading each one back from the server.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+/**
+ * Hands out keys from blocks reserved with nextval. Values of a block are
+ * taken from the sequence, so keys of concurrent clients never collide; a
+ * block that is not used up leaves a gap, as a rolled back insert does.
+ */
+public class KeyBlockAllocator {
+
+   // name of the sequence behind the serial key column
+   private String _sequence;
+
+   // number of values reserved per round trip
+   private int _blockSize;
+
+   // reserved values not handed out yet
+   private ArrayDeque<Integer> _keys = new ArrayDeque<Integer>();
+
+   /**
+    * Creates a new allocator
+    *
+    * @param sequence name of the DB sequence
+    * @param blockSize number of values reserved at a time
+    */
+   public KeyBlockAllocator(String sequence, int blockSize) {
+      this._sequence = sequence;
+      this._blockSize = blockSize;
+   }//end KeyBlockAllocator
+
+   /**
+    * @param esql the connection to reserve a new block on, if needed. With
+    *             shards, each shard needs its own allocator.
+    * @return the next reserved key
+    * @throws java.sql.SQLException when reserving a block failed
+    */
+   public synchronized int nextKey(Amazon esql) throws SQLException {
+      if (this._keys.isEmpty()) {
+         String query = String.format("SELECT nextval('%s') FROM generate_series(1, %d)", this._sequence, this._blockSize);
+         for (List<String> row : esql.executeQueryAndReturnResultWithHeader(query, true).subList(1, this._blockSize + 1))
+            this._keys.add(Integer.parseInt(row.get(0)));
+      }
+      return this._keys.poll();
+   }//end nextKey
+
+   /**
+    * Counts the round trips per order of three ways to place an order and
+    * learn its number, with concurrent requests on a RequestExecutor:
+    * INSERT then currval, INSERT ... RETURNING, and batches of orders keyed
+    * from reserved blocks, whose stock is also taken in one UPDATE. Every
+    * request runs in a transaction that is rolled back, so Orders and
+    * Product are left as they were; only sequence values are used up.
+    *
+    * @param args <dbname> <port> <user> [<orders> [<connections> [<batch size>]]]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " + KeyBlockAllocator.class.getName () +
+            " <dbname> <port> <user> [<orders> [<connections> [<batch size>]]]");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      int orders = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+      int connections = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+      int batchSize = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+
+      List<Amazon> pool = new ArrayList<Amazon>();
+      for (int i = 0; i < connections; i++) {
+         Amazon esql = new Amazon(args[0], args[1], args[2], "");
+         esql.setQuiet(true);
+         pool.add(esql);
+      }
+      List<List<String>> customers = pool.get(0).executeQueryAndReturnResult("SELECT userID FROM Users WHERE type = 'customer'");
+      List<List<String>> products = pool.get(0).executeQueryAndReturnResult("SELECT storeID, productName FROM Product");
+
+      System.out.println("path\torders\tseconds\tround trips/order");
+      final KeyBlockAllocator orderNumbers = new KeyBlockAllocator("orders_ordernumber_seq", 100);
+      for (final String path : new String[] {"currval", "returning", "key block"}) {
+         final RequestExecutor executor = new RequestExecutor(pool, false);
+         final Random random = new Random(orders);
+         long tripsBefore = 0;
+         for (Amazon esql : pool)
+            tripsBefore += esql.roundTrips();
+
+         long start = System.nanoTime();
+         List<Future<Integer>> pending = new ArrayList<Future<Integer>>();
+         int batch = path.equals("key block") ? batchSize : 1;
+         for (int placed = 0; placed < orders; placed += batch) {
+            final int customer = Integer.parseInt(customers.get(random.nextInt(customers.size())).get(0).trim());
+            List<String> store = products.get(random.nextInt(products.size()));
+            final int storeID = Integer.parseInt(store.get(0));
+            final String productName = store.get(1).trim();
+            if (path.equals("currval")) {
+               pending.add(executor.submit(rolledBack(esql -> {
+                  esql.executeUpdate(String.format("UPDATE Product SET numberOfUnits = numberOfUnits - 1 WHERE storeID = %d AND productName = '%s'", storeID, productName));
+                  esql.executeUpdate(String.format("Insert INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES (%d, %d, '%s', 1, CAST(CURRENT_TIMESTAMP AS TIMESTAMP(0)))", customer, storeID, productName));
+                  return esql.getCurrSeqVal("orders_ordernumber_seq");
+               })));
+            } else if (path.equals("returning")) {
+               pending.add(executor.submit(rolledBack(new AmazonRequest.PlaceOrder(customer, storeID, productName, 1))));
+            } else {
+               List<String> names = new ArrayList<String>();
+               List<Integer> units = new ArrayList<Integer>();
+               for (int i = 0; i < Math.min(batch, orders - placed); i++) {
+                  names.add(productName);
+                  units.add(1);
+               }
+               pending.add(executor.submit(rolledBack(new AmazonRequest.PlaceOrders(customer, storeID, names, units, orderNumbers))));
+            }
+         }
+         for (Future<Integer> order : pending)
+            order.get();
+         double seconds = (System.nanoTime() - start) / 1e9;
+         executor.shutdown();
+
+         long trips = -tripsBefore;
+         for (Amazon esql : pool)
+            trips += esql.roundTrips();
+         System.out.printf("%s\t%d\t%.2f\t%.2f%n", path, orders, seconds, (double) trips / orders);
+      }
+
+      System.out.println("round trips count every statement of an order, stock UPDATE included, but not BEGIN and ROLLBACK");
+
+      for (Amazon esql : pool)
+         esql.cleanup();
+   }//end main
+
+   // Runs a request in a transaction that is rolled back afterwards.
+   private static AmazonRequest rolledBack(final AmazonRequest request) {
+      return esql -> {
+         esql.beginTransaction();
+         try {
+            return request.execute(esql);
+         } finally {
+            esql.rollback();
+         }
+      };
+   }
+
+}//end KeyBlockAllocator
@@ -0,0 +1,205 @@
+/*
+ * Product name dictionary for the Amazon user interface
+ * ======================================================
+ *
+ * The same few product names repeat in every row of Product, Orders,
+ * ProductUpdates and ProductSupplyRequests. The dictionary gives each
+ * distinct name a small int code, so columns can hold codes instead of
+ * strings.
+ *
+ * One dictionary, SHARED, is used across the client: the result materializer
+ * of Amazon hands out its trimmed copy of every productName value, so cached
+ * results, rollups and the embedded engine all hold one String (or one int
+ * code) per distinct name instead of a new char(30) padded String per row.
+ * Printed results use the trimmed names too, whichever path they took.
+ *
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps trimmed product names to dense int codes and back.
+ */
+public class ProductNameDictionary {
+
+   // the dictionary shared by result sets, caches, rollups and the embedded engine
+   public static final ProductNameDictionary SHARED = new ProductNameDictionary();
+
+   // code of each name
+   private HashMap<String, Integer> _codes = new HashMap<String, Integer>();
+
+   // name of each code
+   private List<String> _names = new ArrayList<String>();
+
+   // trimmed name of each name as it was read, padded or not
+   private ConcurrentHashMap<String, String> _canonical = new ConcurrentHashMap<String, String>();
+
+   /**
+    * @param name a product name, possibly space padded
+    * @return the code of the name, adding it if it is new
+    */
+   public synchronized int encode(String name) {
+      name = name.trim();
+      Integer code = this._codes.get(name);
+      if (code == null) {
+         code = this._names.size();
+         this._names.add(name);
+         this._codes.put(name, code);
+      }
+      return code;
+   }//end encode
+
+   /**
+    * @param name a product name, possibly space padded
+    * @return the code of the name, or -1 if it was never encoded
+    */
+   public synchronized int lookup(String name) {
+      Integer code = this._codes.get(name.trim());
+      return code == null ? -1 : code;
+   }//end lookup
+
+   /**
+    * @param code a code returned by encode
+    * @return the trimmed product name
+    */
+   public synchronized String decode(int code) {
+      return this._names.get(code);
+   }//end decode
+
+   /**
+    * Runs for every productName value of every result, on many threads at
+    * once, so a name seen before is found without taking the lock.
+    *
+    * @param name a product name, possibly space padded, or null
+    * @return the dictionary's own trimmed copy of the name, so equal names
+    *         share one String; null for null
+    */
+   public String canonical(String name) {
+      if (name == null)
+         return null;
+      String canonical = this._canonical.get(name);
+      if (canonical == null) {
+         canonical = decode(encode(name));
+         this._canonical.putIfAbsent(name, canonical);
+      }
+      return canonical;
+   }//end canonical
+
+   /**
+    * @return the number of distinct names, i.e. one more than the largest code
+    */
+   public synchronized int size() {
+      return this._names.size();
+   }
+
+   // the column layouts main compares, and the names of data/products.csv
+   private static final String[] LAYOUTS = {"padded String", "canonical String", "int code"};
+
+   private static final String[] PRODUCTS = {"7up", "Pepsi", "Lemonade", "Brisk", "Orange Juice", "Donuts", "Pudding",
+      "Ice Cream", "Egg", "Hot and Sour Soup"};
+
+   /**
+    * Measures the heap held by the productName column of an Orders scan of N
+    * rows (10M by default) kept as padded Strings the way getString returns
+    * them, as canonical Strings from the dictionary and as int codes. Names
+    * are drawn from the 10 products of data/products.csv.
+    *
+    * Each layout is measured in a JVM of its own, started with the same heap
+    * settings, so no column of another layout is on the heap. A padded
+    * column holds its own Strings; the other two hold references or codes,
+    * and the distinct names they point to are kept by the dictionary and
+    * reported in a column of their own.
+    *
+    * @param args [<rows>] [<layout>, to measure only that layout in this JVM]
+    */
+   public static void main(String[] args) throws Exception {
+      int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+      if (args.length > 1) {
+         measure(rows, args[1]);
+         return;
+      }
+
+      List<String> jvm = new ArrayList<String>();
+      jvm.add(ProcessHandle.current().info().command().orElse("java"));
+      jvm.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+      // the serial collector compacts fully on System.gc, so used heap settles
+      if (jvm.stream().noneMatch(arg -> arg.matches("-XX:\\+Use\\w*GC")))
+         jvm.add("-XX:+UseSerialGC");
+      jvm.add("-cp");
+      jvm.add(System.getProperty("java.class.path"));
+      jvm.add(ProductNameDictionary.class.getName());
+      jvm.add(Integer.toString(rows));
+
+      System.out.println("column\tMB\tbytes/row\tdistinct names KB");
+      for (String layout : LAYOUTS) {
+         List<String> command = new ArrayList<String>(jvm);
+         command.add(layout);
+         int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+         if (status != 0)
+            System.out.println(layout + "\tfailed (exit status " + status + ")");
+      }
+   }//end main
+
+   // Prints one row: the heap of the column, then of the dictionary's names.
+   private static void measure(int rows, String layout) {
+      // let String.format set up its own state before the baseline
+      String.format("%-30s", PRODUCTS[0]);
+      long empty = settledHeap();
+      ProductNameDictionary dictionary = null;
+      if (!layout.equals("padded String")) {
+         dictionary = new ProductNameDictionary();
+         for (String product : PRODUCTS)
+            dictionary.canonical(String.format("%-30s", product));
+      }
+      long named = settledHeap();
+      Object column = column(rows, layout, dictionary);
+      long filled = settledHeap();
+      String names = dictionary == null ? "-" : String.format("%.1f", (named - empty) / 1e3);
+      System.out.printf("%s\t%.1f\t%.1f\t%s%n", layout, (filled - named) / 1e6, (double) (filled - named) / rows, names);
+      // keep both reachable until after the last reading
+      Reference.reachabilityFence(column);
+      Reference.reachabilityFence(dictionary);
+   }//end measure
+
+   // The productName column of an Orders scan in the given layout.
+   private static Object column(int rows, String layout, ProductNameDictionary dictionary) {
+      Random random = new Random(rows);
+      if (layout.equals("int code")) {
+         int[] codes = new int[rows];
+         for (int row = 0; row < rows; row++)
+            codes[row] = dictionary.encode(PRODUCTS[random.nextInt(PRODUCTS.length)]);
+         return codes;
+      }
+      if (!layout.equals("padded String") && !layout.equals("canonical String"))
+         throw new IllegalArgumentException("Unknown layout: " + layout);
+      String[] names = new String[rows];
+      for (int row = 0; row < rows; row++) {
+         // a fresh char(30) value, as each rs.getString returns
+         String padded = String.format("%-30s", PRODUCTS[random.nextInt(PRODUCTS.length)]);
+         names[row] = dictionary == null ? padded : dictionary.canonical(padded);
+      }
+      return names;
+   }//end column
+
+   // Used heap once collections stop freeing anything.
+   private static long settledHeap() {
+      Runtime runtime = Runtime.getRuntime();
+      long used = Long.MAX_VALUE;
+      for (int i = 0; i < 20; i++) {
+         System.gc();
+         long now = runtime.totalMemory() - runtime.freeMemory();
+         if (now == used)
+            break;
+         used = now;
+      }
+      return used;
+   }
+
+}//end ProductNameDictionary
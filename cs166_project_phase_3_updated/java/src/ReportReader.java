@@ -0,0 +1,228 @@
+/*
+ * Report reader for the Amazon user interface
+ * ============================================
+ *
+ * Reads the columnar files of ReportWriter back, one row group at a time,
+ * and re-aggregates them offline, without a database connection.
+ *
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a report file written by ReportWriter.
+ */
+public class ReportReader {
+
+   private DataInputStream _in;
+
+   private List<String> _columns = new ArrayList<String>();
+
+   // encodings seen per column, counted over the row groups read so far
+   private long[][] _encodings;
+
+   /**
+    * Opens a report file and reads its header
+    *
+    * @param file path of the file to read
+    * @throws java.io.IOException when the file is not a report
+    */
+   public ReportReader(String file) throws IOException {
+      this._in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+      byte[] magic = new byte[ReportWriter.MAGIC.length];
+      this._in.readFully(magic);
+      if (!Arrays.equals(magic, ReportWriter.MAGIC))
+         throw new IOException(file + " is not a report file");
+      int version = this._in.readInt();
+      if (version != ReportWriter.VERSION)
+         throw new IOException("Unsupported report version " + version);
+      int columns = (int) readVarint(this._in);
+      for (int c = 0; c < columns; c++)
+         this._columns.add(readString(this._in));
+      this._encodings = new long[columns][ReportWriter.PLAIN + 1];
+   }//end ReportReader
+
+   public List<String> columns() {
+      return this._columns;
+   }
+
+   /**
+    * @return the values of the next row group, column by column, or null at
+    *         the end of the file
+    * @throws java.io.IOException when the file is damaged
+    */
+   public String[][] nextRowGroup() throws IOException {
+      int rows = (int) readVarint(this._in);
+      if (rows == 0)
+         return null;
+      String[][] group = new String[this._columns.size()][];
+      for (int c = 0; c < group.length; c++) {
+         byte encoding = this._in.readByte();
+         byte[] chunk = new byte[(int) readVarint(this._in)];
+         this._in.readFully(chunk);
+         DataInputStream data = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(chunk)), 1 << 16));
+         group[c] = decodeColumn(encoding, rows, data);
+         this._encodings[c][encoding]++;
+      }
+      return group;
+   }//end nextRowGroup
+
+   public void close() throws IOException {
+      this._in.close();
+   }
+
+   private static String[] decodeColumn(byte encoding, int rows, DataInputStream in) throws IOException {
+      String[] column = new String[rows];
+      boolean[] isNull = new boolean[rows];
+      if (in.readByte() == 1) {
+         byte[] bitmap = new byte[(rows + 7) / 8];
+         in.readFully(bitmap);
+         for (int r = 0; r < rows; r++)
+            isNull[r] = (bitmap[r / 8] & (1 << (r % 8))) != 0;
+      }
+
+      switch (encoding) {
+         case ReportWriter.RLE: {
+            long runs = readVarint(in);
+            int r = 0;
+            for (long run = 0; run < runs; run++) {
+               String value = Long.toString(unzigzag(readVarint(in)));
+               for (long n = readVarint(in); n > 0; n--, r++) {
+                  while (isNull[r])
+                     r++;
+                  column[r] = value;
+               }
+            }
+            break;
+         }
+         case ReportWriter.DELTA:
+         case ReportWriter.TIMESTAMP: {
+            long value = 0;
+            for (int r = 0; r < rows; r++) {
+               if (isNull[r])
+                  continue;
+               value += unzigzag(readVarint(in));
+               column[r] = encoding == ReportWriter.DELTA ? Long.toString(value)
+                  : ReportWriter.formatTimestamp(value);
+            }
+            break;
+         }
+         case ReportWriter.DICTIONARY: {
+            String[] dictionary = new String[(int) readVarint(in)];
+            for (int i = 0; i < dictionary.length; i++)
+               dictionary[i] = readString(in);
+            for (int r = 0; r < rows; r++)
+               if (!isNull[r])
+                  column[r] = dictionary[(int) readVarint(in)];
+            break;
+         }
+         case ReportWriter.PLAIN:
+            for (int r = 0; r < rows; r++)
+               if (!isNull[r])
+                  column[r] = readString(in);
+            break;
+         default:
+            throw new IOException("Unknown column encoding " + encoding);
+      }
+      return column;
+   }//end decodeColumn
+
+   static long unzigzag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   static long readVarint(InputStream in) throws IOException {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+         int b = in.read();
+         if (b < 0)
+            throw new EOFException();
+         value |= (long) (b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+            return value;
+      }
+   }
+
+   static String readString(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[(int) readVarint(in)];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Summarizes a report file, or re-aggregates it: the number of rows per
+    * value of a column, and optionally the sum of a numeric column.
+    *
+    * @param args <file> [<group by column> [<sum column>]]
+    */
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " + ReportReader.class.getName () +
+            " <file> [<group by column> [<sum column>]]");
+         return;
+      }//end if
+      ReportReader reader = new ReportReader(args[0]);
+      int group = args.length > 1 ? column(reader, args[1]) : -1;
+      int sum = args.length > 2 ? column(reader, args[2]) : -1;
+
+      TreeMap<String, long[]> totals = new TreeMap<String, long[]>();
+      long rows = 0, groups = 0;
+      long start = System.nanoTime();
+      for (String[][] values = reader.nextRowGroup(); values != null; values = reader.nextRowGroup()) {
+         groups++;
+         rows += values[0].length;
+         for (int r = 0; group >= 0 && r < values[group].length; r++) {
+            long[] total = totals.get(values[group][r]);
+            if (total == null) {
+               total = new long[2];
+               totals.put(values[group][r], total);
+            }
+            total[0]++;
+            if (sum >= 0 && values[sum][r] != null)
+               total[1] += Long.parseLong(values[sum][r]);
+         }
+      }
+      reader.close();
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      if (group >= 0) {
+         System.out.println(reader.columns().get(group) + "\trows" + (sum >= 0 ? "\t" + reader.columns().get(sum) : "") + "\t");
+         for (Map.Entry<String, long[]> total : totals.entrySet())
+            System.out.println(total.getKey() + "\t" + total.getValue()[0] + (sum >= 0 ? "\t" + total.getValue()[1] : "") + "\t");
+      } else {
+         String[] names = {"", "rle", "delta", "timestamp", "dictionary", "plain"};
+         System.out.println("column\tencodings\t");
+         for (int c = 0; c < reader.columns().size(); c++) {
+            String encodings = "";
+            for (int e = 1; e < names.length; e++)
+               if (reader._encodings[c][e] > 0)
+                  encodings += (encodings.isEmpty() ? "" : ", ") + names[e] + " x" + reader._encodings[c][e];
+            System.out.println(reader.columns().get(c) + "\t" + encodings + "\t");
+         }
+      }
+      System.out.printf("%d rows in %d row groups read in %.2f s%n", rows, groups, seconds);
+   }//end main
+
+   private static int column(ReportReader reader, String name) throws IOException {
+      for (int c = 0; c < reader.columns().size(); c++)
+         if (reader.columns().get(c).equalsIgnoreCase(name))
+            return c;
+      throw new IOException("No column " + name + " in " + reader.columns());
+   }
+
+}//end ReportReader
@@ -0,0 +1,334 @@
+/*
+ * Report export for the Amazon user interface
+ * ============================================
+ *
+ * Writes a query result to a compact columnar file, a row group at a time,
+ * so a store's full order history streams from the database cursor to disk
+ * in constant memory. ReportReader reads the files back.
+ *
+ * File layout (varints are unsigned LEB128, signed values zigzag encoded):
+ *
+ *    "AMZR" version:int columns:varint name:UTF...
+ *    row group...  each:  rows:varint, then per column
+ *                         encoding:byte length:varint deflated chunk
+ *    0:varint      end of file
+ *
+ * Each column chunk picks its encoding from the values it holds:
+ *
+ *    RLE        integers with long runs, e.g. storeID of a store's report:
+ *               runs:varint (value:zigzag count:varint)...
+ *    DELTA      other integers: zigzag differences to the previous value
+ *    TIMESTAMP  yyyy-MM-dd HH:mm:ss values as DELTA over epoch seconds
+ *    DICTIONARY few distinct strings, e.g. productName:
+ *               size:varint string..., then code:varint per value
+ *    PLAIN      string per value
+ *
+ * A chunk starts with a flag byte; 1 means a null bitmap of the rows follows
+ * and only the non null values are encoded. Strings are varint length
+ * followed by UTF-8 bytes.
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes rows to a columnar report file.
+ */
+public class ReportWriter {
+
+   public static final byte[] MAGIC = {'A', 'M', 'Z', 'R'};
+   public static final int VERSION = 1;
+
+   public static final byte RLE = 1;
+   public static final byte DELTA = 2;
+   public static final byte TIMESTAMP = 3;
+   public static final byte DICTIONARY = 4;
+   public static final byte PLAIN = 5;
+
+   // rows buffered per row group
+   public static final int ROW_GROUP_SIZE = 65536;
+
+   private String _file;
+
+   private DataOutputStream _out;
+
+   // values of the current row group, column by column
+   private String[][] _columns = null;
+   private int _rows = 0;
+
+   private long _totalRows = 0;
+
+   /**
+    * Creates the report file
+    *
+    * @param file path of the file to write
+    * @throws java.io.IOException when the file could not be created
+    */
+   public ReportWriter(String file) throws IOException {
+      this._file = file;
+      this._out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+   }//end ReportWriter
+
+   /**
+    * Writes the header. Must be called once, before the first row.
+    *
+    * @param names the column names
+    * @throws java.io.IOException when writing failed
+    */
+   public void columns(List<String> names) throws IOException {
+      this._out.write(MAGIC);
+      this._out.writeInt(VERSION);
+      writeVarint(this._out, names.size());
+      for (String name : names)
+         writeString(this._out, name);
+      this._columns = new String[names.size()][ROW_GROUP_SIZE];
+   }//end columns
+
+   /**
+    * Adds a row, writing out the row group once it is full.
+    *
+    * @param values one value per column, null for SQL NULL
+    * @throws java.io.IOException when writing failed
+    */
+   public void row(List<String> values) throws IOException {
+      for (int c = 0; c < this._columns.length; c++)
+         this._columns[c][this._rows] = values.get(c);
+      ++this._rows;
+      ++this._totalRows;
+      if (this._rows == ROW_GROUP_SIZE)
+         flushRowGroup();
+   }//end row
+
+   /**
+    * Writes the last row group and the end marker and closes the file.
+    *
+    * @return the number of rows written
+    * @throws java.io.IOException when writing failed
+    */
+   public long close() throws IOException {
+      try {
+         if (this._rows > 0)
+            flushRowGroup();
+         writeVarint(this._out, 0);
+      } finally {
+         this._out.close();
+      }
+      return this._totalRows;
+   }//end close
+
+   /**
+    * Closes and deletes an unfinished file, after the export failed.
+    *
+    * @throws java.io.IOException when the file could not be deleted
+    */
+   public void abort() throws IOException {
+      try {
+         this._out.close();
+      } finally {
+         Files.deleteIfExists(Paths.get(this._file));
+      }
+   }//end abort
+
+   private void flushRowGroup() throws IOException {
+      writeVarint(this._out, this._rows);
+      for (String[] column : this._columns) {
+         ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+         Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+         DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(chunk, deflater), 1 << 16));
+         byte encoding = encodeColumn(column, this._rows, data);
+         data.close();
+         deflater.end();
+
+         this._out.writeByte(encoding);
+         writeVarint(this._out, chunk.size());
+         chunk.writeTo(this._out);
+      }
+      for (String[] column : this._columns)
+         Arrays.fill(column, 0, this._rows, null);
+      this._rows = 0;
+   }//end flushRowGroup
+
+   // Writes the nulls and the non null values of a column chunk; returns the encoding used.
+   private static byte encodeColumn(String[] column, int rows, DataOutputStream out) throws IOException {
+      int nulls = 0;
+      for (int r = 0; r < rows; r++)
+         if (column[r] == null)
+            nulls++;
+      if (nulls == 0) {
+         out.writeByte(0);
+      } else {
+         out.writeByte(1);
+         byte[] bitmap = new byte[(rows + 7) / 8];
+         for (int r = 0; r < rows; r++)
+            if (column[r] == null)
+               bitmap[r / 8] |= 1 << (r % 8);
+         out.write(bitmap);
+      }
+
+      int count = rows - nulls;
+      long[] numbers = new long[count];
+      byte encoding = RLE;
+      for (int r = 0, i = 0; r < rows && encoding != PLAIN; r++) {
+         if (column[r] == null)
+            continue;
+         Long number = encoding == TIMESTAMP ? null : parseInteger(column[r]);
+         if (number == null) {
+            if (i == 0 || encoding == TIMESTAMP) {
+               number = parseTimestamp(column[r]);
+               encoding = number == null ? PLAIN : TIMESTAMP;
+            } else {
+               encoding = PLAIN;
+            }
+         }
+         if (number != null)
+            numbers[i++] = number;
+      }
+
+      if (encoding != PLAIN) {
+         int runs = count == 0 ? 0 : 1;
+         for (int i = 1; i < count; i++)
+            if (numbers[i] != numbers[i - 1])
+               runs++;
+         if (encoding == RLE && runs * 4 > count)
+            encoding = DELTA;
+         if (encoding == RLE) {
+            writeVarint(out, runs);
+            for (int i = 0; i < count; ) {
+               int j = i;
+               while (j < count && numbers[j] == numbers[i])
+                  j++;
+               writeVarint(out, zigzag(numbers[i]));
+               writeVarint(out, j - i);
+               i = j;
+            }
+         } else {
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+               writeVarint(out, zigzag(numbers[i] - previous));
+               previous = numbers[i];
+            }
+         }
+         return encoding;
+      }
+
+      LinkedHashMap<String, Integer> codes = new LinkedHashMap<String, Integer>();
+      for (int r = 0; r < rows && codes.size() * 2 <= count; r++)
+         if (column[r] != null && !codes.containsKey(column[r]))
+            codes.put(column[r], codes.size());
+      if (codes.size() * 2 <= count) {
+         writeVarint(out, codes.size());
+         for (String value : codes.keySet())
+            writeString(out, value);
+         for (int r = 0; r < rows; r++)
+            if (column[r] != null)
+               writeVarint(out, codes.get(column[r]));
+         return DICTIONARY;
+      }
+      for (int r = 0; r < rows; r++)
+         if (column[r] != null)
+            writeString(out, column[r]);
+      return PLAIN;
+   }//end encodeColumn
+
+   // the value as a long, if it prints back exactly the same
+   private static Long parseInteger(String value) {
+      if (value.isEmpty() || value.length() > 18)
+         return null;
+      try {
+         long number = Long.parseLong(value);
+         return Long.toString(number).equals(value) ? number : null;
+      } catch (NumberFormatException e) {
+         return null;
+      }
+   }
+
+   // Epoch seconds of a yyyy-MM-dd HH:mm:ss value, or null for anything
+   // else. Parsed by hand: a DateTimeFormatter costs more than the rest of
+   // the export put together.
+   static Long parseTimestamp(String value) {
+      if (value.length() != 19 || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != ' '
+            || value.charAt(13) != ':' || value.charAt(16) != ':')
+         return null;
+      int year = digits(value, 0, 4), month = digits(value, 5, 2), day = digits(value, 8, 2);
+      int hour = digits(value, 11, 2), minute = digits(value, 14, 2), second = digits(value, 17, 2);
+      if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+            || minute < 0 || minute > 59 || second < 0 || second > 59)
+         return null;
+      try {
+         return LocalDate.of(year, month, day).toEpochDay() * 86400 + hour * 3600 + minute * 60 + second;
+      } catch (DateTimeException e) {
+         return null;
+      }
+   }
+
+   // the yyyy-MM-dd HH:mm:ss form of epoch seconds, as PostgreSQL prints a timestamp(0)
+   static String formatTimestamp(long seconds) {
+      LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(seconds, 86400));
+      int time = Math.floorMod(seconds, 86400);
+      char[] text = new char[19];
+      put(text, 0, date.getYear(), 4);
+      text[4] = '-';
+      put(text, 5, date.getMonthValue(), 2);
+      text[7] = '-';
+      put(text, 8, date.getDayOfMonth(), 2);
+      text[10] = ' ';
+      put(text, 11, time / 3600, 2);
+      text[13] = ':';
+      put(text, 14, time / 60 % 60, 2);
+      text[16] = ':';
+      put(text, 17, time % 60, 2);
+      return new String(text);
+   }
+
+   // the number written by the given digits, or -1 if one is not a digit
+   private static int digits(String value, int from, int count) {
+      int number = 0;
+      for (int i = from; i < from + count; i++) {
+         char c = value.charAt(i);
+         if (c < '0' || c > '9')
+            return -1;
+         number = number * 10 + (c - '0');
+      }
+      return number;
+   }
+
+   private static void put(char[] text, int from, int number, int count) {
+      for (int i = from + count - 1; i >= from; i--, number /= 10)
+         text[i] = (char) ('0' + number % 10);
+   }
+
+   static long zigzag(long value) {
+      return (value << 1) ^ (value >> 63);
+   }
+
+   static void writeVarint(OutputStream out, long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+         out.write((int) ((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      out.write((int) value);
+   }
+
+   static void writeString(OutputStream out, String value) throws IOException {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarint(out, bytes.length);
+      out.write(bytes);
+   }
+
+}//end ReportWriter
@@ -0,0 +1,229 @@
+/*
+ * Concurrent request executor for the Amazon user interface
+ * ==========================================================
+ *
+ * Runs AmazonRequest objects from many simulated sessions at once. Every
+ * request gets its own thread, virtual when the JVM has them (Java 21 and
+ * later), and a semaphore sized to the connection pool keeps the number of
+ * requests talking to the database at the pool size. A blocked session then
+ * costs a parked thread rather than a connection. The menus of the user
+ * interface submit their operations here too, over a pool holding the
+ * session's own connection.
+ *
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-per-request executor over a fixed pool of connections.
+ */
+public class RequestExecutor {
+
+   // connections not in use by a request
+   private ConcurrentLinkedQueue<Amazon> _idle = new ConcurrentLinkedQueue<Amazon>();
+
+   // one permit per pooled connection
+   private Semaphore _permits;
+
+   private ExecutorService _threads;
+
+   // requests that failed with an SQLException
+   private AtomicLong _failures = new AtomicLong();
+
+   /**
+    * Creates an executor over the given connections
+    *
+    * @param pool the connections requests run on
+    * @param virtual true for virtual threads, false for platform threads
+    */
+   public RequestExecutor(List<Amazon> pool, boolean virtual) {
+      this._idle.addAll(pool);
+      this._permits = new Semaphore(pool.size(), true);
+      this._threads = virtual ? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
+   }//end RequestExecutor
+
+   /**
+    * Looks the virtual thread executor up without creating one.
+    *
+    * @return true when the running JVM has virtual threads
+    */
+   public static boolean virtualThreadsAvailable() {
+      try {
+         Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return true;
+      } catch (NoSuchMethodException e) {
+         return false;
+      }
+   }//end virtualThreadsAvailable
+
+   /**
+    * @return an executor that starts a virtual thread per task, or null when
+    *         the running JVM has no virtual threads
+    */
+   public static ExecutorService newVirtualThreadExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+         return null;
+      }
+   }//end newVirtualThreadExecutor
+
+   /**
+    * Runs a request on a pooled connection, waiting for a free one first.
+    * Call from a thread of this executor, e.g. inside a submitted session.
+    *
+    * @param request the request to run
+    * @return the result of the request
+    * @throws java.sql.SQLException when the request failed
+    */
+   public int run(AmazonRequest request) throws SQLException {
+      this._permits.acquireUninterruptibly();
+      Amazon esql = this._idle.poll();
+      try {
+         return request.execute(esql);
+      } catch (SQLException e) {
+         this._failures.incrementAndGet();
+         throw e;
+      } finally {
+         this._idle.add(esql);
+         this._permits.release();
+      }
+   }//end run
+
+   /**
+    * Runs a request on its own thread.
+    *
+    * @param request the request to run
+    * @return the pending result of the request
+    */
+   public Future<Integer> submit(final AmazonRequest request) {
+      return this._threads.submit(() -> run(request));
+   }//end submit
+
+   /**
+    * Runs a request on its own thread and waits for its result, as the menus
+    * of the user interface do.
+    *
+    * @param request the request to run
+    * @return the result of the request
+    * @throws java.sql.SQLException when the request failed
+    */
+   public int execute(AmazonRequest request) throws SQLException {
+      try {
+         return submit(request).get();
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException) e.getCause();
+         throw new SQLException(e.getCause().getMessage());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for the request");
+      }
+   }//end execute
+
+   /**
+    * Starts a task, typically a whole session, on its own thread.
+    *
+    * @param session the task to run
+    * @return the pending completion of the task
+    */
+   public Future<?> start(Runnable session) {
+      return this._threads.submit(session);
+   }//end start
+
+   public long failures() {
+      return this._failures.get();
+   }
+
+   public void shutdown() {
+      this._threads.shutdown();
+   }
+
+   /**
+    * Compares platform and virtual threads: runs 100, 1k and 10k concurrent
+    * read-only customer sessions (view stores, view products, view recent
+    * orders) of random users over one connection pool.
+    *
+    * @param args <dbname> <port> <user> [<pool size>]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " + RequestExecutor.class.getName () +
+            " <dbname> <port> <user> [<pool size>]");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      int poolSize = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+      List<Amazon> pool = new ArrayList<Amazon>();
+      for (int i = 0; i < poolSize; i++) {
+         Amazon esql = new Amazon(args[0], args[1], args[2], "");
+         esql.setQuiet(true);
+         pool.add(esql);
+      }
+      List<List<String>> customers = pool.get(0).executeQueryAndReturnResult("SELECT userID FROM Users WHERE type = 'customer'");
+      List<List<String>> stores = pool.get(0).executeQueryAndReturnResult("SELECT storeID FROM Store");
+
+      boolean haveVirtual = virtualThreadsAvailable();
+      System.out.println("threads\tsessions\tseconds\trequests/s\tpeak threads\tfailures");
+      for (int sessions : new int[] {100, 1000, 10000}) {
+         report("platform", sessions, pool, false, customers, stores);
+         if (haveVirtual)
+            report("virtual", sessions, pool, true, customers, stores);
+      }
+      if (!haveVirtual)
+         System.out.println("virtual threads are not available on Java " + System.getProperty("java.version") + ", run on Java 21 or later to compare");
+
+      for (Amazon esql : pool)
+         esql.cleanup();
+   }//end main
+
+   // Runs one round of sessions and prints a line of the comparison table.
+   private static void report(String kind, int sessions, List<Amazon> pool, boolean virtual,
+                              final List<List<String>> customers, final List<List<String>> stores) throws Exception {
+      final RequestExecutor executor = new RequestExecutor(pool, virtual);
+      final Random random = new Random(sessions);
+      ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+
+      long start = System.nanoTime();
+      List<Future<?>> pending = new ArrayList<Future<?>>();
+      for (int i = 0; i < sessions; i++) {
+         final int customer = Integer.parseInt(customers.get(random.nextInt(customers.size())).get(0));
+         final int store = Integer.parseInt(stores.get(random.nextInt(stores.size())).get(0));
+         pending.add(executor.start(() -> {
+            try {
+               executor.run(new AmazonRequest.ViewStores(customer));
+               executor.run(new AmazonRequest.ViewProducts(store));
+               executor.run(new AmazonRequest.ViewRecentOrders(customer));
+            } catch (SQLException e) {
+               // counted in failures
+            }
+         }));
+      }
+      for (Future<?> session : pending)
+         session.get();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      executor.shutdown();
+      executor._threads.awaitTermination(1, TimeUnit.MINUTES);
+
+      System.out.printf("%s\t%d\t%.2f\t%.0f\t%d\t%d%n", kind, sessions, seconds, sessions * 3 / seconds,
+         ManagementFactory.getThreadMXBean().getPeakThreadCount(), executor.failures());
+   }//end report
+
+}//end RequestExecutor
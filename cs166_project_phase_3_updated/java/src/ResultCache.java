@@ -0,0 +1,452 @@
+/*
+ * Query result cache for the Amazon user interface
+ * =================================================
+ *
+ * Keeps the results of repeated reads (a manager's store list, the
+ * warehouse list, ...) keyed by their normalized SQL. Every entry records
+ * the tables its query reads; a write through this client to one of them,
+ * or a change notification for it, drops the entry. A write of another
+ * client is seen only once the entry expires: results over Orders,
+ * ProductUpdates and ProductSupplyRequests may be up to the time to live
+ * old. With --listen, a Product or Store change announced on a channel this
+ * client listens on drops the entry at once.
+ * Reads of Users are never cached, as their text holds login credentials.
+ *
+ * The cache holds at most a given number of bytes. Eviction follows
+ * W-TinyLFU: new entries enter a small LRU window; an entry leaving the
+ * window only displaces the coldest entry of the main area when a
+ * count-min sketch says it has been asked for more often. The main area is
+ * a segmented LRU, so entries hit twice are protected from one-off scans.
+ *
+ */
+
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A size bounded, W-TinyLFU evicted cache of query results.
+ */
+public class ResultCache {
+
+   // a cached result, its size and the tables it depends on
+   private static class Entry {
+      String key;
+      List<List<String>> value;
+      long weight;
+      Set<String> tables;
+      long expiresAt;
+      LinkedHashMap<String, Entry> segment;
+   }
+
+   // a count-min sketch of 4 bit counters, halved as it fills up so old
+   // popularity fades
+   private static class FrequencySketch {
+      private byte[][] _counters;
+      private int _mask;
+      private int _samples = 0;
+      private int _sampleLimit;
+
+      FrequencySketch(int width) {
+         int size = Integer.highestOneBit(Math.max(64, width - 1)) << 1;
+         this._counters = new byte[4][size];
+         this._mask = size - 1;
+         this._sampleLimit = 10 * size;
+      }
+
+      void increment(String key) {
+         int hash = key.hashCode();
+         for (int row = 0; row < 4; row++) {
+            int i = index(hash, row);
+            if (this._counters[row][i] < 15)
+               this._counters[row][i]++;
+         }
+         if (++this._samples == this._sampleLimit) {
+            for (byte[] counters : this._counters)
+               for (int i = 0; i < counters.length; i++)
+                  counters[i] >>= 1;
+            this._samples /= 2;
+         }
+      }
+
+      int frequency(String key) {
+         int hash = key.hashCode();
+         int frequency = 15;
+         for (int row = 0; row < 4; row++)
+            frequency = Math.min(frequency, this._counters[row][index(hash, row)]);
+         return frequency;
+      }
+
+      private int index(int hash, int row) {
+         hash = (hash + row * 0x9E3779B9) * 0x85EBCA6B;
+         return (hash ^ (hash >>> 15)) & this._mask;
+      }
+   }//end FrequencySketch
+
+   // statements whose result must not be reused
+   private static final Pattern VOLATILE = Pattern.compile("\\b(nextval|currval|setval|now|random|current_timestamp|current_date|pg_backend_pid)\\b");
+   private static final Pattern TABLES = Pattern.compile("\\b(?:from|join)\\s+([a-z_]\\w*(?:\\s+(?:as\\s+)?[a-z_]\\w*)?(?:\\s*,\\s*[a-z_]\\w*(?:\\s+(?:as\\s+)?[a-z_]\\w*)?)*)");
+   private static final Pattern WRITTEN_TABLE = Pattern.compile("^\\s*(?:insert\\s+into|update|delete\\s+from)\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+
+   private HashMap<String, Entry> _entries = new HashMap<String, Entry>();
+
+   // LRU order, oldest first
+   private LinkedHashMap<String, Entry> _window = new LinkedHashMap<String, Entry>();
+   private LinkedHashMap<String, Entry> _probation = new LinkedHashMap<String, Entry>();
+   private LinkedHashMap<String, Entry> _protected = new LinkedHashMap<String, Entry>();
+   private long _windowWeight = 0, _probationWeight = 0, _protectedWeight = 0;
+   private long _windowMax, _mainMax, _protectedMax;
+
+   private FrequencySketch _sketch;
+
+   // keys of the entries that read each table
+   private HashMap<String, Set<String>> _dependents = new HashMap<String, Set<String>>();
+
+   // bumped on every invalidation of a table, so a result read before it is not kept
+   private HashMap<String, Long> _generations = new HashMap<String, Long>();
+
+   private long _ttlMs;
+
+   private long _hits = 0, _misses = 0, _evictions = 0, _invalidations = 0;
+
+   /**
+    * Creates a new cache
+    *
+    * @param maxBytes the estimated heap the cached results may take
+    * @param ttlMs the time to live of an entry in milliseconds
+    */
+   public ResultCache(long maxBytes, long ttlMs) {
+      this._windowMax = Math.max(1, maxBytes / 100);
+      this._mainMax = maxBytes - this._windowMax;
+      this._protectedMax = this._mainMax * 80 / 100;
+      this._ttlMs = ttlMs;
+      // a typical result is a few hundred bytes
+      this._sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, maxBytes / 512)));
+   }//end ResultCache
+
+   /**
+    * @param query the input query string
+    * @return the cache key of the query: its text with whitespace collapsed
+    *         and everything outside string literals in lower case, or null
+    *         if its result must not be cached: writes, volatile functions
+    *         and reads of the Users table
+    */
+   public static String normalize(String query) {
+      StringBuilder key = new StringBuilder(query.length());
+      boolean literal = false;
+      for (int i = 0; i < query.length(); i++) {
+         char c = query.charAt(i);
+         if (c == '\'')
+            literal = !literal;
+         if (literal || c == '\'') {
+            key.append(c);
+         } else if (Character.isWhitespace(c)) {
+            if (key.length() > 0 && key.charAt(key.length() - 1) != ' ')
+               key.append(' ');
+         } else {
+            key.append(Character.toLowerCase(c));
+         }
+      }
+      String normalized = key.toString().trim().replaceAll(";$", "").trim();
+      if (!normalized.startsWith("select ") || VOLATILE.matcher(withoutLiterals(normalized)).find())
+         return null;
+      // reads of Users carry names and passwords in their text; keep them out
+      // of the heap and of any dump of it
+      if (tablesOf(normalized).contains("users"))
+         return null;
+      return normalized;
+   }//end normalize
+
+   /**
+    * @param key a normalized query
+    * @return the tables it reads
+    */
+   public static Set<String> tablesOf(String key) {
+      Set<String> tables = new HashSet<String>();
+      Matcher m = TABLES.matcher(withoutLiterals(key));
+      while (m.find())
+         for (String item : m.group(1).split(","))
+            tables.add(item.trim().split("\\s+")[0]);
+      return tables;
+   }//end tablesOf
+
+   /**
+    * @param sql an INSERT, UPDATE or DELETE statement
+    * @return the table it writes, in lower case, or null
+    */
+   public static String writtenTable(String sql) {
+      Matcher m = WRITTEN_TABLE.matcher(sql);
+      return m.find() ? m.group(1).toLowerCase() : null;
+   }
+
+   private static String withoutLiterals(String sql) {
+      return sql.replaceAll("'[^']*'", "''");
+   }
+
+   /**
+    * @param key a normalized query
+    * @return the cached result, read only, or null when missing or expired
+    */
+   public synchronized List<List<String>> get(String key) {
+      this._sketch.increment(key);
+      Entry entry = this._entries.get(key);
+      if (entry != null && System.currentTimeMillis() >= entry.expiresAt) {
+         remove(entry);
+         entry = null;
+      }
+      if (entry == null) {
+         ++this._misses;
+         return null;
+      }
+      ++this._hits;
+      if (entry.segment == this._probation) {
+         // a second hit: move to the protected segment
+         unlink(entry);
+         link(entry, this._protected);
+         while (this._protectedWeight > this._protectedMax) {
+            Entry demoted = this._protected.values().iterator().next();
+            unlink(demoted);
+            link(demoted, this._probation);
+         }
+      } else {
+         LinkedHashMap<String, Entry> segment = entry.segment;
+         unlink(entry);
+         link(entry, segment);
+      }
+      return entry.value;
+   }//end get
+
+   /**
+    * Call before running a query whose result will be put, so that a write
+    * to its tables while it runs is not missed.
+    *
+    * @param key a normalized query
+    * @return the generation to pass to put
+    */
+   public synchronized long begin(String key) {
+      return generation(tablesOf(key));
+   }
+
+   /**
+    * Stores a result, unless one of its tables was invalidated since begin
+    * or it is larger than the cache.
+    *
+    * @param key a normalized query
+    * @param value the column names followed by the rows
+    * @param generation the value begin returned before the query ran
+    */
+   public synchronized void put(String key, List<List<String>> value, long generation) {
+      Set<String> tables = tablesOf(key);
+      long weight = weigh(key, value);
+      if (generation(tables) != generation || weight > this._mainMax)
+         return;
+      Entry old = this._entries.get(key);
+      if (old != null)
+         remove(old);
+
+      Entry entry = new Entry();
+      entry.key = key;
+      entry.value = readOnlyCopy(value);
+      entry.weight = weight;
+      entry.tables = tables;
+      entry.expiresAt = System.currentTimeMillis() + this._ttlMs;
+      this._entries.put(key, entry);
+      for (String table : tables)
+         this._dependents.computeIfAbsent(table, t -> new HashSet<String>()).add(key);
+      link(entry, this._window);
+
+      while (this._windowWeight > this._windowMax)
+         admit(this._window.values().iterator().next());
+   }//end put
+
+   // A copy whose rows cannot be changed, so neither the caller that put
+   // the result nor the callers that get it can alter what others read.
+   private static List<List<String>> readOnlyCopy(List<List<String>> value) {
+      List<List<String>> copy = new ArrayList<List<String>>(value.size());
+      for (List<String> row : value)
+         copy.add(Collections.unmodifiableList(new ArrayList<String>(row)));
+      return Collections.unmodifiableList(copy);
+   }
+
+   // Moves the oldest window entry to the main area if the sketch prefers
+   // it over the entries it would displace; otherwise drops it.
+   private void admit(Entry candidate) {
+      unlink(candidate);
+      int frequency = this._sketch.frequency(candidate.key);
+      List<Entry> victims = new ArrayList<Entry>();
+      long freed = 0;
+      Iterator<Entry> coldest = this._probation.values().iterator();
+      Iterator<Entry> protectedColdest = this._protected.values().iterator();
+      while (this._probationWeight + this._protectedWeight - freed + candidate.weight > this._mainMax) {
+         Entry victim = coldest.hasNext() ? coldest.next() : protectedColdest.next();
+         if (this._sketch.frequency(victim.key) >= frequency) {
+            evict(candidate);
+            return;
+         }
+         victims.add(victim);
+         freed += victim.weight;
+      }
+      for (Entry victim : victims)
+         evict(victim);
+      link(candidate, this._probation);
+   }//end admit
+
+   private void evict(Entry entry) {
+      ++this._evictions;
+      remove(entry);
+   }
+
+   /**
+    * Drops every entry that reads the given table.
+    *
+    * @param table the table name, in any case
+    */
+   public synchronized void invalidateTable(String table) {
+      table = table.toLowerCase();
+      this._generations.merge(table, 1L, Long::sum);
+      Set<String> keys = this._dependents.remove(table);
+      if (keys == null)
+         return;
+      for (String key : keys) {
+         Entry entry = this._entries.get(key);
+         if (entry != null) {
+            ++this._invalidations;
+            remove(entry);
+         }
+      }
+   }//end invalidateTable
+
+   /**
+    * Drops the entries a change announced on a ClientCache channel makes
+    * stale: product_<storeID>, store or users_<userID>.
+    *
+    * @param channel the notification channel
+    */
+   public void invalidateChannel(String channel) {
+      int end = channel.indexOf('_');
+      invalidateTable(end < 0 ? channel : channel.substring(0, end));
+   }
+
+   /**
+    * @return hits, misses, hit rate, evictions, invalidations and the bytes held
+    */
+   public synchronized String stats() {
+      long lookups = this._hits + this._misses;
+      return String.format("%d hits, %d misses (%.1f%% hit rate), %d evicted, %d invalidated, %d entries in %d KB",
+         this._hits, this._misses, lookups == 0 ? 0.0 : 100.0 * this._hits / lookups, this._evictions,
+         this._invalidations, this._entries.size(), (this._windowWeight + this._probationWeight + this._protectedWeight) / 1024);
+   }//end stats
+
+   public synchronized double hitRate() {
+      long lookups = this._hits + this._misses;
+      return lookups == 0 ? 0 : (double) this._hits / lookups;
+   }
+
+   private void remove(Entry entry) {
+      unlink(entry);
+      this._entries.remove(entry.key);
+      for (String table : entry.tables) {
+         Set<String> keys = this._dependents.get(table);
+         if (keys != null)
+            keys.remove(entry.key);
+      }
+   }
+
+   private void link(Entry entry, LinkedHashMap<String, Entry> segment) {
+      entry.segment = segment;
+      segment.put(entry.key, entry);
+      if (segment == this._window)
+         this._windowWeight += entry.weight;
+      else if (segment == this._probation)
+         this._probationWeight += entry.weight;
+      else
+         this._protectedWeight += entry.weight;
+   }
+
+   private void unlink(Entry entry) {
+      if (entry.segment == null)
+         return;
+      entry.segment.remove(entry.key);
+      if (entry.segment == this._window)
+         this._windowWeight -= entry.weight;
+      else if (entry.segment == this._probation)
+         this._probationWeight -= entry.weight;
+      else
+         this._protectedWeight -= entry.weight;
+      entry.segment = null;
+   }
+
+   private long generation(Set<String> tables) {
+      long generation = 0;
+      for (String table : tables) {
+         Long g = this._generations.get(table);
+         generation += g == null ? 0 : g;
+      }
+      return generation;
+   }
+
+   // estimated heap of a result: list and String headers plus one byte per character
+   private static long weigh(String key, List<List<String>> value) {
+      long weight = 64 + 2L * key.length();
+      for (List<String> row : value) {
+         weight += 40;
+         for (String cell : row)
+            weight += 8 + (cell == null ? 0 : 40 + cell.length());
+      }
+      return weight;
+   }
+
+   /**
+    * Replays a synthetic read trace, Zipf distributed over 10k distinct
+    * queries with a one-off scan of 5k queries every 20k reads, and prints
+    * the hit rate for a few cache sizes.
+    *
+    * @param args [<reads>]
+    */
+   public static void main(String[] args) {
+      int reads = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+      int queries = 10000;
+      double[] cumulative = new double[queries];
+      double total = 0;
+      for (int q = 0; q < queries; q++)
+         cumulative[q] = total += 1.0 / (q + 1);
+
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (int r = 0; r < 4; r++) {
+         List<String> row = new ArrayList<String>();
+         row.add("1234");
+         row.add("Lemonade");
+         result.add(row);
+      }
+
+      System.out.println("cache KB\thit rate");
+      for (long kb : new long[] {64, 256, 1024}) {
+         ResultCache cache = new ResultCache(kb * 1024, Long.MAX_VALUE / 2);
+         Random random = new Random(7);
+         int scan = 0;
+         for (int i = 0; i < reads; i++) {
+            String key;
+            if (i % 20000 < 5000)
+               key = "select * from orders where ordernumber = " + (scan++);
+            else {
+               int q = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+               key = "select storeid from store where managerid = " + (q < 0 ? -q - 1 : q);
+            }
+            if (cache.get(key) == null)
+               cache.put(key, result, cache.begin(key));
+         }
+         System.out.printf("%d\t%.1f%%\t(%s)%n", kb, 100 * cache.hitRate(), cache.stats());
+      }
+   }//end main
+
+}//end ResultCache
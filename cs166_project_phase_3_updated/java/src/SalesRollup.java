@@ -0,0 +1,421 @@
+/*
+ * Store sales rollups for the Amazon user interface
+ * ==================================================
+ *
+ * Keeps units sold and revenue per store and product in hourly and daily
+ * buckets, so a manager's sales trend over any window adds up a few hundred
+ * buckets instead of joining the whole order history with Product.
+ *
+ * The rollup is filled from Orders: once in parallel chunks of orderNumber
+ * (backfill), then incrementally with the orders above the highest
+ * orderNumber seen so far (catch up), after each order this client places
+ * and before each trend query, so orders of other clients are counted too.
+ * Revenue uses the product's price at the time the order is rolled up, as
+ * Orders does not keep the price paid.
+ *
+ * Order numbers do not commit in order: a concurrent insert, or a block of
+ * numbers reserved by a KeyBlockAllocator, can leave a lower number missing
+ * when a higher one is rolled up. A catch up therefore reads again from the
+ * lowest number still missing (the low water), skipping the orders it has
+ * rolled up already. A missing number stops holding the low water back once
+ * it is REREAD_WINDOW numbers below the highest one or GAP_RETENTION_MS old,
+ * so numbers that were rolled back or never used cost at most one bounded
+ * range per catch up, for a short while; an order committed later than that
+ * is not counted.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.IntPredicate;
+
+/**
+ * Hourly and daily sales buckets of every store.
+ */
+public class SalesRollup {
+
+   public static final long HOUR = 3600;
+   public static final long DAY = 24 * HOUR;
+
+   private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+   // orders per backfill chunk
+   public static final int CHUNK_SIZE = 50000;
+
+   // how far below the highest order number, and for how long, a missing
+   // number is read again
+   public static final int REREAD_WINDOW = 1000;
+   public static final long GAP_RETENTION_MS = 60 * 1000;
+
+   // units and revenue of one time bucket, indexed by product name code
+   static class Bucket {
+      long[] units = new long[8];
+      double[] revenue = new double[8];
+
+      void add(int product, long units, double revenue) {
+         if (product >= this.units.length) {
+            int length = Math.max(product + 1, this.units.length * 2);
+            this.units = Arrays.copyOf(this.units, length);
+            this.revenue = Arrays.copyOf(this.revenue, length);
+         }
+         this.units[product] += units;
+         this.revenue[product] += revenue;
+      }
+
+      void addAll(Bucket other) {
+         for (int product = other.units.length - 1; product >= 0; product--)
+            if (other.units[product] != 0 || other.revenue[product] != 0)
+               add(product, other.units[product], other.revenue[product]);
+      }
+
+      long totalUnits() {
+         long total = 0;
+         for (long u : this.units)
+            total += u;
+         return total;
+      }
+
+      double totalRevenue() {
+         double total = 0;
+         for (double r : this.revenue)
+            total += r;
+         return total;
+      }
+   }//end Bucket
+
+   // the buckets of one store, keyed by start time in epoch seconds
+   static class StoreBuckets {
+      TreeMap<Long, Bucket> hourly = new TreeMap<Long, Bucket>();
+      TreeMap<Long, Bucket> daily = new TreeMap<Long, Bucket>();
+   }
+
+   private HashMap<Integer, StoreBuckets> _stores = new HashMap<Integer, StoreBuckets>();
+
+   private ProductNameDictionary _productNames;
+
+   // highest orderNumber rolled up so far
+   private int _highWater = 0;
+
+   // lowest orderNumber a catch up reads, and the numbers from there to
+   // _highWater that are rolled up already (at most REREAD_WINDOW)
+   private int _lowWater = 1;
+   private TreeSet<Integer> _rolledUp = new TreeSet<Integer>();
+
+   // _highWater at past catch ups, oldest first and at most one a second;
+   // numbers below one older than GAP_RETENTION_MS are no longer waited for
+   private ArrayDeque<long[]> _checkpoints = new ArrayDeque<long[]>();
+
+   // held by a catch up from reading the new orders until _highWater moves,
+   // so two catch ups never roll up the same orders
+   private final Object _catchUpLock = new Object();
+
+   /**
+    * Creates an empty rollup
+    *
+    * @param productNames the dictionary that encodes the product columns
+    */
+   public SalesRollup(ProductNameDictionary productNames) {
+      this._productNames = productNames;
+   }//end SalesRollup
+
+   /**
+    * Adds one order to the buckets of its store.
+    *
+    * @param storeID the store the order was placed at
+    * @param product code of the product name
+    * @param units the units ordered
+    * @param revenue units times price
+    * @param time the order time in epoch seconds
+    */
+   public synchronized void record(int storeID, int product, long units, double revenue, long time) {
+      StoreBuckets store = this._stores.get(storeID);
+      if (store == null) {
+         store = new StoreBuckets();
+         this._stores.put(storeID, store);
+      }
+      bucket(store.hourly, Math.floorDiv(time, HOUR) * HOUR).add(product, units, revenue);
+      bucket(store.daily, Math.floorDiv(time, DAY) * DAY).add(product, units, revenue);
+   }//end record
+
+   private static Bucket bucket(TreeMap<Long, Bucket> buckets, long start) {
+      Bucket bucket = buckets.get(start);
+      if (bucket == null) {
+         bucket = new Bucket();
+         buckets.put(start, bucket);
+      }
+      return bucket;
+   }
+
+   /**
+    * Sums the sales of a store in [from, to): whole days from the daily
+    * buckets and the partial days at either end from the hourly buckets.
+    * Both ends are rounded down to the hour.
+    *
+    * @param storeID the store
+    * @param from window start in epoch seconds
+    * @param to window end in epoch seconds
+    * @return units and revenue per product in the window
+    */
+   public synchronized Bucket sum(int storeID, long from, long to) {
+      Bucket total = new Bucket();
+      StoreBuckets store = this._stores.get(storeID);
+      if (store == null || from >= to)
+         return total;
+      from = Math.floorDiv(from, HOUR) * HOUR;
+      to = Math.floorDiv(to, HOUR) * HOUR;
+      long firstDay = Math.floorDiv(from + DAY - 1, DAY) * DAY;
+      long lastDay = Math.floorDiv(to, DAY) * DAY;
+      if (firstDay >= lastDay) {
+         for (Bucket b : store.hourly.subMap(from, to).values())
+            total.addAll(b);
+         return total;
+      }
+      for (Bucket b : store.hourly.subMap(from, firstDay).values())
+         total.addAll(b);
+      for (Bucket b : store.daily.subMap(firstDay, lastDay).values())
+         total.addAll(b);
+      for (Bucket b : store.hourly.subMap(lastDay, to).values())
+         total.addAll(b);
+      return total;
+   }//end sum
+
+   /**
+    * @return the start of the first and the end of the last hour with sales
+    *         at the store, or null if it has none
+    */
+   public synchronized long[] extent(int storeID) {
+      StoreBuckets store = this._stores.get(storeID);
+      if (store == null || store.hourly.isEmpty())
+         return null;
+      return new long[] {store.hourly.firstKey(), store.hourly.lastKey() + HOUR};
+   }//end extent
+
+   /**
+    * Rolls up all existing orders, reading chunks of orderNumber in parallel,
+    * one chunk per connection at a time.
+    *
+    * @param connections the connections to read on
+    * @throws java.sql.SQLException when a chunk could not be read
+    */
+   public void backfill(final List<Amazon> connections) throws SQLException {
+      List<List<String>> range = connections.get(0).executeQueryAndReturnResultWithHeader("SELECT MIN(orderNumber), MAX(orderNumber) FROM Orders", false, false);
+      if (range.size() < 2 || range.get(1).get(0) == null)
+         return;
+      int first = Integer.parseInt(range.get(1).get(0));
+      final int last = Integer.parseInt(range.get(1).get(1));
+
+      final LinkedBlockingQueue<Amazon> idle = new LinkedBlockingQueue<Amazon>(connections);
+      ExecutorService threads = Executors.newFixedThreadPool(connections.size());
+      List<Future<Object>> chunks = new ArrayList<Future<Object>>();
+      for (int start = first; start <= last; start += CHUNK_SIZE) {
+         final int from = start;
+         final int to = (int) Math.min((long) start + CHUNK_SIZE - 1, last);
+         chunks.add(threads.submit(() -> {
+            Amazon esql = idle.take();
+            try {
+               // replicas may lag: what they lack near the end is read
+               // again from the primary by the first catch up
+               List<Integer> seen = rollUp(esql, betweenQuery(from, to), false, null);
+               synchronized (this) {
+                  for (int orderNumber : seen)
+                     if (orderNumber > last - REREAD_WINDOW)
+                        this._rolledUp.add(orderNumber);
+               }
+            } finally {
+               idle.add(esql);
+            }
+            return null;
+         }));
+      }
+      try {
+         for (Future<Object> chunk : chunks)
+            chunk.get();
+      } catch (Exception e) {
+         Throwable cause = e.getCause() != null ? e.getCause() : e;
+         throw cause instanceof SQLException ? (SQLException) cause : new SQLException(cause.getMessage());
+      } finally {
+         threads.shutdown();
+      }
+      synchronized (this) {
+         this._highWater = Math.max(this._highWater, last);
+         this._lowWater = Math.max(this._lowWater, first);
+         advanceLowWater();
+      }
+   }//end backfill
+
+   /**
+    * Rolls up the orders placed since the last backfill or catch up, and the
+    * missing orders above the low water that have committed since.
+    *
+    * @param esql the connection to read on
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   public void catchUp(Amazon esql) throws SQLException {
+      synchronized (this._catchUpLock) {
+         int from;
+         final TreeSet<Integer> rolledUp;
+         synchronized (this) {
+            from = this._lowWater;
+            rolledUp = new TreeSet<Integer>(this._rolledUp);
+         }
+         List<Integer> seen = rollUp(esql, betweenQuery(from, Integer.MAX_VALUE), true, rolledUp::contains);
+         synchronized (this) {
+            this._rolledUp.addAll(seen);
+            if (!seen.isEmpty())
+               this._highWater = Math.max(this._highWater, seen.get(seen.size() - 1));
+            advanceLowWater();
+         }
+      }
+   }//end catchUp
+
+   // Moves _lowWater up to the lowest number still waited for: not rolled up,
+   // within REREAD_WINDOW of _highWater and missing for less than
+   // GAP_RETENTION_MS.
+   private void advanceLowWater() {
+      long now = System.currentTimeMillis();
+      long givenUp = 0;
+      while (!this._checkpoints.isEmpty() && this._checkpoints.peekFirst()[0] <= now - GAP_RETENTION_MS)
+         givenUp = this._checkpoints.pollFirst()[1];
+      if (this._checkpoints.isEmpty() || this._checkpoints.peekLast()[0] <= now - 1000)
+         this._checkpoints.addLast(new long[] {now, this._highWater});
+
+      long low = Math.max(this._lowWater, Math.max((long) this._highWater - REREAD_WINDOW + 1, givenUp + 1));
+      while (low <= this._highWater && this._rolledUp.contains((int) low))
+         low++;
+      this._lowWater = (int) low;
+      this._rolledUp.headSet(this._lowWater).clear();
+   }//end advanceLowWater
+
+   private static String betweenQuery(int from, int to) {
+      return String.format("SELECT O.orderNumber, O.storeID, O.productName, O.unitsOrdered, O.orderTime, P.pricePerUnit FROM Orders O, Product P WHERE O.storeID = P.storeID AND O.productName = P.productName AND O.orderNumber BETWEEN %d AND %d", from, to);
+   }
+
+   // Rolls up the orders of a query but the skipped ones, and returns their
+   // numbers, sorted. The result cache is never used, as orders of other
+   // clients are not announced; catch ups also read from the primary, past
+   // lagging replicas.
+   private List<Integer> rollUp(Amazon esql, String query, boolean primary, IntPredicate skip) throws SQLException {
+      List<Integer> seen = new ArrayList<Integer>();
+      List<List<String>> orders = esql.executeQueryAndReturnResultWithHeader(query, primary, false);
+      for (List<String> order : orders.subList(1, orders.size())) {
+         int orderNumber = Integer.parseInt(order.get(0));
+         if (skip != null && skip.test(orderNumber))
+            continue;
+         long units = Long.parseLong(order.get(3));
+         record(Integer.parseInt(order.get(1)), this._productNames.encode(order.get(2)), units,
+            units * Double.parseDouble(order.get(5)), parseTimestamp(order.get(4)));
+         seen.add(orderNumber);
+      }
+      seen.sort(null);
+      return seen;
+   }//end rollUp
+
+   /**
+    * The sales of a store in [from, to), one row per bucket of the given step
+    * that has sales
+    *
+    * @param storeID the store
+    * @param from window start in epoch seconds
+    * @param to window end in epoch seconds
+    * @param step HOUR or DAY
+    * @return the column names followed by one row per bucket
+    */
+   public List<List<String>> trend(int storeID, long from, long to, long step) {
+      List<List<String>> result = new ArrayList<List<String>>();
+      result.add(Arrays.asList("period", "units", "revenue"));
+      for (long start = Math.floorDiv(from, step) * step; start < to; start += step) {
+         Bucket b = sum(storeID, Math.max(start, from), Math.min(start + step, to));
+         if (b.totalUnits() != 0)
+            result.add(Arrays.asList(formatTimestamp(start), String.valueOf(b.totalUnits()), String.format("%.2f", b.totalRevenue())));
+      }
+      return result;
+   }//end trend
+
+   /**
+    * The sales of a store in [from, to) per product, followed by the total
+    *
+    * @param storeID the store
+    * @param from window start in epoch seconds
+    * @param to window end in epoch seconds
+    * @return the column names followed by one row per product sold
+    */
+   public List<List<String>> productTotals(int storeID, long from, long to) {
+      List<List<String>> result = new ArrayList<List<String>>();
+      result.add(Arrays.asList("productname", "units", "revenue"));
+      Bucket total = sum(storeID, from, to);
+      for (int product = 0; product < total.units.length; product++)
+         if (total.units[product] != 0)
+            result.add(Arrays.asList(this._productNames.decode(product), String.valueOf(total.units[product]), String.format("%.2f", total.revenue[product])));
+      result.add(Arrays.asList("Total", String.valueOf(total.totalUnits()), String.format("%.2f", total.totalRevenue())));
+      return result;
+   }//end productTotals
+
+   public static long parseTimestamp(String value) {
+      return LocalDateTime.parse(value.trim(), TIMESTAMP).toEpochSecond(ZoneOffset.UTC);
+   }
+
+   public static String formatTimestamp(long seconds) {
+      return LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC).format(TIMESTAMP);
+   }
+
+   /**
+    * Rolls up a synthetic order history (100M orders by default, spread over
+    * 20 stores, 20 products and one year) and times trend queries over
+    * windows of an hour, a day, a week, a month and the whole year.
+    *
+    * @param args [<orders>]
+    */
+   public static void main(String[] args) {
+      long orders = args.length > 0 ? Long.parseLong(args[0]) : 100000000L;
+      ProductNameDictionary names = new ProductNameDictionary();
+      for (int p = 0; p < 20; p++)
+         names.encode("Product " + p);
+      SalesRollup rollup = new SalesRollup(names);
+
+      long start = LocalDateTime.of(2016, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+      long span = 365 * DAY;
+      Random random = new Random(42);
+      long t0 = System.nanoTime();
+      for (long i = 0; i < orders; i++) {
+         int units = 1 + random.nextInt(50);
+         rollup.record(1 + random.nextInt(20), random.nextInt(20), units, units * 3.0, start + (long) (random.nextDouble() * span));
+      }
+      System.out.printf("rolled up %d orders in %.1f s%n", orders, (System.nanoTime() - t0) / 1e9);
+
+      Map<String, Long> windows = new LinkedHashMap<String, Long>();
+      windows.put("hour", HOUR);
+      windows.put("day", DAY);
+      windows.put("week", 7 * DAY);
+      windows.put("month", 30 * DAY);
+      windows.put("year", span);
+      System.out.println("window\tms/query");
+      for (Map.Entry<String, Long> window : windows.entrySet()) {
+         int queries = 1000;
+         long sink = 0;
+         t0 = System.nanoTime();
+         for (int q = 0; q < queries; q++) {
+            long from = start + 1800 + (long) (random.nextDouble() * (span - window.getValue()));
+            sink += rollup.sum(1 + random.nextInt(20), from, from + window.getValue()).totalUnits();
+         }
+         System.out.printf("%s\t%.3f\t(%d units)%n", window.getKey(), (System.nanoTime() - t0) / 1e6 / queries, sink);
+      }
+   }//end main
+
+}//end SalesRollup
@@ -0,0 +1,296 @@
+/*
+ * Session input for the Amazon user interface
+ * ============================================
+ *
+ * Every menu choice and every value the handlers ask for is one line read
+ * through this class, so a session can be recorded and replayed.
+ *
+ * A recording holds one line per input, "<offset ms>\t<line>", where the
+ * offset is the time since the first prompt; lines starting with # are
+ * comments. Passwords are not written: their line is "<offset ms>*\t", and
+ * a replay asks for them on the keyboard, unless the recording was made
+ * with passwords kept (for throwaway test accounts only). A replay feeds the
+ * recorded lines back at their offsets divided by a speed factor (10 for
+ * 10x, 0 for as fast as possible) and writes one timing row per step to a
+ * results file:
+ *
+ *    step   offset_ms   start_ms   lag_ms   service_ms   input
+ *
+ * start_ms is when the line was fed, lag_ms how far behind its scheduled
+ * time that was (the database not keeping up with the recorded pace) and
+ * service_ms the time until the next line was asked for, i.e. the work the
+ * line triggered.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.time.LocalDateTime;
+
+/**
+ * The line source of the user interface: the keyboard, optionally recorded,
+ * or a recorded session.
+ */
+public class SessionInput {
+
+   /**
+    * Thrown when the input has no more lines, so the menus end instead of
+    * asking again.
+    */
+   public static class EndOfSession extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      public EndOfSession(String message) {
+         super(message);
+      }
+   }//end EndOfSession
+
+   private BufferedReader _reader;
+
+   // the recording being replayed and the number of its last line read
+   private String _file = null;
+   private int _lineNumber = 0;
+   private boolean _ended = false;
+
+   // where typed passwords are read during a replay
+   private BufferedReader _keyboard = null;
+
+   // where typed lines are recorded, or null; passwords are masked unless kept
+   private PrintWriter _recording = null;
+   private boolean _recordPasswords = false;
+
+   // replay pacing and timings; _replay is false for keyboard input
+   private boolean _replay = false;
+   private double _speed = 1;
+   private PrintWriter _results = null;
+
+   private long _start = System.nanoTime();
+
+   // the step whose service time is being measured
+   private int _step = 0;
+   private long _stepOffsetMs, _stepStarted, _stepLagMs;
+   private String _stepLine = null;
+   private double _totalServiceMs = 0, _maxServiceMs = 0;
+   private long _maxLagMs = 0;
+
+   private SessionInput(BufferedReader reader) {
+      this._reader = reader;
+   }
+
+   /**
+    * @return input typed on the keyboard (or piped to standard in)
+    */
+   public static SessionInput interactive() {
+      return new SessionInput(new BufferedReader(new InputStreamReader(System.in)));
+   }//end interactive
+
+   /**
+    * Reads from the keyboard and records every line with its offset.
+    *
+    * @param file the recording to write
+    * @param passwords true to write passwords in plain text, so a replay
+    *                  needs no keyboard; false to mask them
+    * @throws java.io.IOException when the file could not be created
+    */
+   public static SessionInput recording(String file, boolean passwords) throws IOException {
+      SessionInput input = interactive();
+      input._recording = new PrintWriter(new FileWriter(file), true);
+      input._recordPasswords = passwords;
+      input._recording.println("# Amazon session recorded " + LocalDateTime.now().withNano(0)
+         + (passwords ? ", WITH PASSWORDS IN PLAIN TEXT" : ""));
+      return input;
+   }//end recording
+
+   /**
+    * Replays a recording.
+    *
+    * @param file the recording to read
+    * @param speed how many times faster than recorded to feed the lines; 0
+    *              feeds them as fast as the database allows
+    * @param results the file to write the per step timings to
+    * @throws java.io.IOException when a file could not be opened
+    */
+   public static SessionInput replay(String file, double speed, String results) throws IOException {
+      SessionInput input = new SessionInput(new BufferedReader(new FileReader(file)));
+      input._file = file;
+      input._replay = true;
+      input._speed = speed;
+      input._results = new PrintWriter(new FileWriter(results));
+      input._results.println("step\toffset_ms\tstart_ms\tlag_ms\tservice_ms\tinput");
+      return input;
+   }//end replay
+
+   /**
+    * Starts the session clock. Call once the first prompt is about to show,
+    * so connecting or loading data does not count toward the offsets.
+    */
+   public synchronized void start() {
+      this._start = System.nanoTime();
+   }
+
+   /**
+    * @return the next line, without its line break
+    * @throws java.io.IOException when reading failed
+    * @throws EndOfSession when there is no more input
+    */
+   public String readLine() throws IOException {
+      return readLine(false);
+   }
+
+   /**
+    * Reads a password: it is masked in a recording, and read from the
+    * keyboard when a replay reaches a masked one.
+    *
+    * @return the next line, without its line break
+    * @throws java.io.IOException when reading failed
+    * @throws EndOfSession when there is no more input
+    */
+   public String readPassword() throws IOException {
+      return readLine(true);
+   }
+
+   private synchronized String readLine(boolean password) throws IOException {
+      if (!this._replay) {
+         String line = this._reader.readLine();
+         if (line == null)
+            throw new EndOfSession("End of input");
+         if (this._recording != null) {
+            if (password && !this._recordPasswords)
+               this._recording.println(elapsedMs() + "*\t");
+            else
+               this._recording.println(elapsedMs() + "\t" + line);
+         }
+         return line;
+      }
+
+      if (this._ended)
+         throw new EndOfSession("End of recorded session");
+      finishStep();
+      String record;
+      do {
+         record = this._reader.readLine();
+         ++this._lineNumber;
+         if (record == null) {
+            this._ended = true;
+            close();
+            throw new EndOfSession("End of recorded session");
+         }
+      } while (record.isEmpty() || record.startsWith("#"));
+      int tab = record.indexOf('\t');
+      boolean masked = tab > 0 && record.charAt(tab - 1) == '*';
+      long offsetMs;
+      try {
+         offsetMs = Long.parseLong(record.substring(0, masked ? tab - 1 : Math.max(tab, 0)));
+      } catch (NumberFormatException e) {
+         offsetMs = -1;
+      }
+      if (tab < 0 || offsetMs < 0) {
+         this._ended = true;
+         close();
+         throw new EndOfSession(this._file + ":" + this._lineNumber + ": not a recorded line (<offset ms><tab><input>): " + record);
+      }
+      String line = record.substring(tab + 1);
+
+      long lagMs = 0;
+      if (this._speed > 0) {
+         long dueMs = (long) (offsetMs / this._speed);
+         long waitMs = dueMs - elapsedMs();
+         if (waitMs > 0) {
+            try {
+               Thread.sleep(waitMs);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+         lagMs = Math.max(0, elapsedMs() - dueMs);
+      }
+      if (masked) {
+         line = readKeyboard();
+      } else {
+         // echo the line after the prompt, as the keyboard would
+         System.out.println(line);
+      }
+
+      this._step++;
+      this._stepOffsetMs = offsetMs;
+      this._stepLagMs = lagMs;
+      this._stepLine = line;
+      this._stepStarted = System.nanoTime();
+      return line;
+   }//end readLine
+
+   // Reads a masked password of a replay from the console, without echo if possible.
+   private String readKeyboard() throws IOException {
+      if (System.console() != null) {
+         char[] password = System.console().readPassword();
+         if (password != null)
+            return new String(password);
+      } else {
+         if (this._keyboard == null)
+            this._keyboard = new BufferedReader(new InputStreamReader(System.in));
+         String line = this._keyboard.readLine();
+         if (line != null)
+            return line;
+      }
+      throw new EndOfSession("No password given for " + this._file + ":" + this._lineNumber);
+   }
+
+   /**
+    * @return the next line as an int
+    * @throws java.io.IOException when reading failed
+    * @throws java.lang.NumberFormatException when the line is not a number
+    */
+   public int readInt() throws IOException {
+      return Integer.parseInt(readLine().trim());
+   }
+
+   /**
+    * @return the next line as a double
+    * @throws java.io.IOException when reading failed
+    * @throws java.lang.NumberFormatException when the line is not a number
+    */
+   public double readDouble() throws IOException {
+      return Double.parseDouble(readLine().trim());
+   }
+
+   // Writes the timing row of the step that is being served.
+   private void finishStep() {
+      if (this._stepLine == null)
+         return;
+      double serviceMs = (System.nanoTime() - this._stepStarted) / 1e6;
+      long startMs = (this._stepStarted - this._start) / 1000000;
+      this._results.printf("%d\t%d\t%d\t%d\t%.3f\t%s%n", this._step, this._stepOffsetMs, startMs, this._stepLagMs, serviceMs, this._stepLine);
+      this._totalServiceMs += serviceMs;
+      this._maxServiceMs = Math.max(this._maxServiceMs, serviceMs);
+      this._maxLagMs = Math.max(this._maxLagMs, this._stepLagMs);
+      this._stepLine = null;
+   }//end finishStep
+
+   /**
+    * Ends the session: writes the last timing row and prints a summary of a
+    * replay, or closes the recording.
+    */
+   public synchronized void close() {
+      if (this._recording != null) {
+         this._recording.close();
+         this._recording = null;
+      }
+      if (this._results != null) {
+         finishStep();
+         this._results.close();
+         this._results = null;
+         System.out.printf("%nReplayed %d steps in %.2f s: %.3f ms mean and %.3f ms max service time, %d ms max lag%n",
+            this._step, elapsedMs() / 1000.0, this._step == 0 ? 0 : this._totalServiceMs / this._step, this._maxServiceMs, this._maxLagMs);
+      }
+   }//end close
+
+   private long elapsedMs() {
+      return (System.nanoTime() - this._start) / 1000000;
+   }
+
+}//end SessionInput
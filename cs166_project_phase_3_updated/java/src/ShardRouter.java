@@ -0,0 +1,226 @@
+/*
+ * Store sharding for the Amazon user interface
+ * =============================================
+ *
+ * Product, Orders, ProductUpdates, ProductSupplyRequests and Store are split
+ * across several databases by storeID. Users and Warehouse are small
+ * reference tables that every shard keeps a full copy of, so the foreign
+ * keys of the sharded tables still hold inside each database. New Users
+ * rows take their userID from the home database's sequence, so every copy
+ * of a user has the same ID.
+ *
+ * To set up a shard, run sql/scripts/create_db.sh against it and delete the
+ * Store rows it does not own; ON DELETE CASCADE removes the matching
+ * Product rows, and Orders, ProductUpdates and ProductSupplyRequests rows of
+ * other stores have to be deleted first.
+ *
+ */
+
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Maps a storeID to the shard that owns it and runs cross-store reads on
+ * every shard in parallel.
+ *
+ * Stores are assigned by hash (storeID modulo the number of shards) unless
+ * first store IDs are given, in which case shard i owns the range
+ * [firstStoreIDs[i], firstStoreIDs[i+1]).
+ */
+public class ShardRouter {
+
+   // shard 0 is the home database that also serves Users and Warehouse
+   private List<Amazon> _shards;
+
+   // first storeID of each shard's range, or null for hash placement
+   private int[] _firstStoreIDs;
+
+   // one thread per shard for scatter-gather reads
+   private ExecutorService _pool;
+
+   /**
+    * Creates a router over the given shards
+    *
+    * @param shards the shard connections, home database first
+    * @param firstStoreIDs ascending first storeID per shard, or null to hash
+    */
+   public ShardRouter(List<Amazon> shards, int[] firstStoreIDs) {
+      this._shards = shards;
+      this._firstStoreIDs = firstStoreIDs;
+      this._pool = Executors.newFixedThreadPool(shards.size(), r -> {
+         Thread t = new Thread(r, "shard-scatter");
+         t.setDaemon(true);
+         return t;
+      });
+   }//end ShardRouter
+
+   public int size() {
+      return this._shards.size();
+   }
+
+   public List<Amazon> shards() {
+      return this._shards;
+   }
+
+   /**
+    * @param storeID the shard key
+    * @return the shard that owns every row of the given store
+    */
+   public Amazon shardFor(int storeID) {
+      if (this._firstStoreIDs == null)
+         return this._shards.get(Math.floorMod(storeID, this._shards.size()));
+      int shard = 0;
+      while (shard + 1 < this._firstStoreIDs.length && storeID >= this._firstStoreIDs[shard + 1])
+         shard++;
+      return this._shards.get(shard);
+   }//end shardFor
+
+   /**
+    * Runs a query on every shard at the same time and concatenates the
+    * results. The first record holds the column names.
+    *
+    * @param query the input query string
+    * @param primary true to read from the shard primaries even if replicas are set
+    * @return the column names followed by the rows of all shards
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<List<String>> gather(final String query, final boolean primary) throws SQLException {
+      List<Future<List<List<String>>>> parts = new ArrayList<Future<List<List<String>>>>();
+      for (final Amazon shard : this._shards)
+         parts.add(this._pool.submit(() -> shard.executeQueryAndReturnResultWithHeader(query, primary)));
+
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (Future<List<List<String>>> part : parts) {
+         List<List<String>> rows = waitFor(part);
+         if (result.isEmpty())
+            result.add(rows.get(0));
+         result.addAll(rows.subList(1, rows.size()));
+      }
+      return result;
+   }//end gather
+
+   /**
+    * Runs an ORDER BY ... DESC LIMIT n query on every shard and keeps the
+    * overall top n rows. The sort column is compared as a number when both
+    * values are numbers and as text otherwise, which orders timestamps
+    * (yyyy-MM-dd HH:mm:ss) correctly too; NULLs come first, as they do in
+    * PostgreSQL's descending order.
+    *
+    * @param query the per-shard top-n query
+    * @param sortColumn index of the column the query sorts on
+    * @param limit the number of rows to keep
+    * @return the column names followed by the top rows
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<List<String>> gatherTop(String query, final int sortColumn, int limit) throws SQLException {
+      List<List<String>> result = gather(query, false);
+      List<List<String>> rows = new ArrayList<List<String>>(result.subList(1, result.size()));
+      Collections.sort(rows, (a, b) -> compareValues(b.get(sortColumn), a.get(sortColumn)));
+      List<List<String>> top = new ArrayList<List<String>>();
+      top.add(result.get(0));
+      top.addAll(rows.subList(0, Math.min(limit, rows.size())));
+      return top;
+   }//end gatherTop
+
+   // Orders two column values: NULL above everything, numbers by value and
+   // anything else as text.
+   static int compareValues(String a, String b) {
+      if (a == null || b == null)
+         return a == null ? (b == null ? 0 : 1) : -1;
+      try {
+         return new BigDecimal(a.trim()).compareTo(new BigDecimal(b.trim()));
+      } catch (NumberFormatException e) {
+         return a.compareTo(b);
+      }
+   }
+
+   /**
+    * Applies a write to a reference table on every shard, each shard in its
+    * own transaction. This is not atomic across shards. A write that one
+    * shard rejects is rolled back everywhere, as nothing is committed until
+    * it succeeded on every shard; but the commits are separate. If a commit
+    * fails after earlier shards committed, the compensating statement is run
+    * on those shards, best effort. Should it fail too, or the client stop
+    * between two commits, the copies stay different until fixed by hand,
+    * and readers of a shard can see the write before, or after, the others.
+    *
+    * @param sql the update statement
+    * @param compensation the statement that undoes it, or null
+    * @throws java.sql.SQLException when the update failed on any shard
+    */
+   public void broadcast(String sql, String compensation) throws SQLException {
+      List<Amazon> open = new ArrayList<Amazon>();
+      try {
+         for (Amazon shard : this._shards) {
+            shard.beginTransaction();
+            open.add(shard);
+            shard.executeUpdate(sql);
+         }
+      } catch (SQLException e) {
+         for (Amazon shard : open)
+            rollback(shard, e);
+         throw e;
+      }
+
+      List<Amazon> committed = new ArrayList<Amazon>();
+      for (Amazon shard : this._shards) {
+         try {
+            shard.commit();
+            committed.add(shard);
+         } catch (SQLException e) {
+            for (Amazon other : this._shards)
+               if (!committed.contains(other))
+                  rollback(other, e);
+            for (Amazon other : committed) {
+               try {
+                  if (compensation != null)
+                     other.executeUpdate(compensation);
+               } catch (SQLException undo) {
+                  e.addSuppressed(undo);
+               }
+            }
+            throw e;
+         }
+      }
+   }//end broadcast
+
+   private static void rollback(Amazon shard, SQLException cause) {
+      try {
+         shard.rollback();
+      } catch (SQLException e) {
+         cause.addSuppressed(e);
+      }
+   }
+
+   /**
+    * Closes the connections of all shards except the home one, which is
+    * owned by the caller.
+    */
+   public void cleanup() {
+      this._pool.shutdownNow();
+      for (int i = 1; i < this._shards.size(); i++)
+         this._shards.get(i).cleanup();
+   }//end cleanup
+
+   private static List<List<String>> waitFor(Future<List<List<String>>> part) throws SQLException {
+      try {
+         return part.get();
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause().getMessage());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for shards");
+      }
+   }//end waitFor
+
+}//end ShardRouter
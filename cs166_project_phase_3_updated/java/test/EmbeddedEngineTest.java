@@ -0,0 +1,163 @@
+/*
+ * Statement coverage check of the embedded engine
+ * ================================================
+ *
+ * The embedded engine answers statements by their shape, so a query that
+ * Amazon or AmazonRequest changes without a matching pattern only fails
+ * once someone runs that menu with --embedded. This check runs every
+ * request and every menu operation against a freshly loaded engine and
+ * exits with status 1 if any statement failed, so scripts/compile.sh stops
+ * on the drift.
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * Runs the statements of the user interface on the embedded engine.
+ */
+public class EmbeddedEngineTest {
+
+   // a session through every menu option: a new user, then a customer, a
+   // manager of stores 2, 4 and 17 and the admin logged in in turn
+   private static final String[] SESSION = {
+      "1", "Tester", "secret", "50.0", "50.0",
+      "2", "Nobody", "wrong",
+      "2", "Amy", "xyz",
+         "1",
+         "2", "2",
+         "3", "2", "7up", "1",
+         "4",
+         "20",
+      "2", "Karianne", "xyz",
+         "5", "2", "7up", "Y", "60", "Y", "5",
+         "6",
+         "7", "2",
+         "8", "2",
+         "9", "2", "7up", "1", "3",
+         "10", "2",
+         "12", "2", "", "",
+         "12", "2", "2016-01-01", "2016-01-02 12:00",
+         "13", "2", "1", "@orders",
+         "13", "2", "2", "@popular_items",
+         "13", "2", "3", "@supply_requests",
+         "20",
+      "2", "Admin", "xyz",
+         "11", "1", "2", "3", "2", "Amy", "xyz", "42.96338", "58.46449", "customer", "4", "2", "Pepsi", "60", "4.5", "20",
+         "20",
+      "9",
+   };
+
+   /**
+    * @param args <data dir>
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length != 1) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " + EmbeddedEngineTest.class.getName () + " <data dir>");
+         System.exit(2);
+      }//end if
+      File dir = Files.createTempDirectory("embedded").toFile();
+      List<String> failures = new ArrayList<String>();
+      try {
+         checkRequests(args[0], dir, failures);
+         checkSession(args[0], dir, failures);
+      } finally {
+         for (File file : dir.listFiles())
+            file.delete();
+         dir.delete();
+      }
+      if (!failures.isEmpty()) {
+         for (String failure : failures)
+            System.err.println(failure);
+         System.err.println(failures.size() + " statement check(s) failed on the embedded engine");
+         System.exit(1);
+      }
+      System.out.println("Every statement of the user interface runs on the embedded engine");
+   }//end main
+
+   // Runs each request and the Amazon helpers the menus do not reach.
+   private static void checkRequests(String dataDir, File dir, List<String> failures) throws IOException {
+      Amazon esql = new Amazon(new EmbeddedEngine(dataDir));
+      esql.setQuiet(true);
+      KeyBlockAllocator orderNumbers = new KeyBlockAllocator("orders_ordernumber_seq", 10);
+      AmazonRequest[] requests = {
+         new AmazonRequest.ViewStores(2),
+         new AmazonRequest.ViewProducts(2),
+         new AmazonRequest.ViewProductNames(2),
+         new AmazonRequest.PlaceOrder(2, 2, "7up", 1),
+         new AmazonRequest.PlaceOrders(2, 2, Arrays.asList("7up", "Pepsi"), Arrays.asList(1, 2), orderNumbers),
+         new AmazonRequest.ViewRecentOrders(2),
+         new AmazonRequest.UpdateProduct(20, 2, "7up", 60, null),
+         new AmazonRequest.UpdateProduct(20, 2, "7up", null, 5),
+         new AmazonRequest.UpdateProduct(20, 2, "7up", 60, 5),
+         new AmazonRequest.ViewRecentUpdates(20),
+         new AmazonRequest.ViewPopularProducts(2),
+         new AmazonRequest.ViewPopularCustomers(2),
+         new AmazonRequest.ViewManagedStores(20),
+         new AmazonRequest.ViewWarehouses(),
+         new AmazonRequest.PlaceSupplyRequest(20, 3, 2, "7up", 1),
+         new AmazonRequest.ViewAllOrders(2),
+         new AmazonRequest.ViewSalesTrend(2, null, null),
+         new AmazonRequest.ExportReport(2, 1, new File(dir, "orders").getPath()),
+         new AmazonRequest.ExportReport(2, 2, new File(dir, "popular_items").getPath()),
+         new AmazonRequest.ExportReport(2, 3, new File(dir, "supply_requests").getPath()),
+      };
+      for (AmazonRequest request : requests) {
+         try {
+            request.execute(esql);
+         } catch (Exception e) {
+            failures.add(request.getClass().getSimpleName() + ": " + e.getMessage());
+         }
+      }
+      try {
+         esql.getNextSeqVal("users_userid_seq");
+         esql.getCurrSeqVal("users_userid_seq");
+         esql.rollUpNewOrders();
+      } catch (Exception e) {
+         failures.add("Amazon: " + e.getMessage());
+      }
+   }//end checkRequests
+
+   // Replays SESSION through Amazon.main; every error the menus print fails.
+   private static void checkSession(String dataDir, File dir, List<String> failures) throws IOException {
+      File recording = new File(dir, "session");
+      PrintWriter writer = new PrintWriter(recording);
+      writer.println("# every menu option, with passwords");
+      for (String line : SESSION)
+         writer.println("0\t" + (line.startsWith("@") ? new File(dir, line.substring(1)).getPath() : line));
+      writer.close();
+
+      PrintStream out = System.out, err = System.err;
+      ByteArrayOutputStream printed = new ByteArrayOutputStream();
+      ByteArrayOutputStream errors = new ByteArrayOutputStream();
+      System.setOut(new PrintStream(printed, true));
+      System.setErr(new PrintStream(errors, true));
+      try {
+         Amazon.main(new String[] {"amazon", "0", "nobody", "--embedded=" + dataDir,
+            "--replay=" + recording.getPath() + "@0", "--results=" + new File(dir, "results").getPath()});
+      } finally {
+         System.setOut(out);
+         System.setErr(err);
+      }
+      for (String line : errors.toString().split("\n"))
+         if (!line.trim().isEmpty())
+            failures.add("menu: " + line.trim());
+      // a script that no longer matches the menus skips the statements it was to check
+      for (String line : printed.toString().split("\n"))
+         if (line.contains("Your input is invalid!") || line.contains("Unrecognized choice!") || line.contains("can use this function"))
+            failures.add("menu: the session does not match the menus: " + line.trim());
+      if (!printed.toString().contains("Bye !"))
+         failures.add("menu: the session did not run to its end");
+   }//end checkSession
+
+}//end EmbeddedEngineTest
@@ -0,0 +1,44 @@
+-- Change notifications for client side caches.
+-- Every change to a cached table raises NOTIFY on a channel named after the
+-- cache key it invalidates: product_<storeID>, store and users_<userID>.
+
+CREATE OR REPLACE FUNCTION notify_product_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		EXECUTE 'NOTIFY product_' || OLD.storeID;
+		RETURN OLD;
+	END IF;
+	EXECUTE 'NOTIFY product_' || NEW.storeID;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION notify_store_change() RETURNS trigger AS $$
+BEGIN
+	NOTIFY store;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION notify_users_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		EXECUTE 'NOTIFY users_' || OLD.userID;
+		RETURN OLD;
+	END IF;
+	EXECUTE 'NOTIFY users_' || NEW.userID;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS product_change ON Product;
+CREATE TRIGGER product_change AFTER INSERT OR UPDATE OR DELETE ON Product
+	FOR EACH ROW EXECUTE PROCEDURE notify_product_change();
+
+DROP TRIGGER IF EXISTS store_change ON Store;
+CREATE TRIGGER store_change AFTER INSERT OR UPDATE OR DELETE ON Store
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_store_change();
+
+DROP TRIGGER IF EXISTS users_change ON Users;
+CREATE TRIGGER users_change AFTER INSERT OR UPDATE OR DELETE ON Users
+	FOR EACH ROW EXECUTE PROCEDURE notify_users_change();